@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.alerts;
+
+/**
+ * When the alert rules of an application are polled next, and the interval they're currently polled at.
+ * Saved as JSON in the preferences, by application.
+ */
+public class AlertPollState {
+    private long mNextPollTime;
+    private long mIntervalMillis;
+
+    public AlertPollState(long nextPollTime, long intervalMillis) {
+        mNextPollTime = nextPollTime;
+        mIntervalMillis = intervalMillis;
+    }
+
+    /** In System.currentTimeMillis() time, so it survives a reboot */
+    public long getNextPollTime() {
+        return mNextPollTime;
+    }
+
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    public void schedule(long nowMillis, long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+        mNextPollTime = nowMillis + intervalMillis;
+    }
+}
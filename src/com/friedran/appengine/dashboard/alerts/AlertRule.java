@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.alerts;
+
+/**
+ * Notifies when a metric of an application goes above (or below) a threshold. Also holds the state of its
+ * evaluation - the last point evaluated and whether the metric is currently past the threshold - so each poll only
+ * evaluates the points that have arrived since the previous one, and a notification is only raised once per breach.
+ *
+ * Saved as JSON in the preferences, along with the rest of the rules.
+ */
+public class AlertRule {
+    // Values within this fraction of the threshold are close enough to poll the application more frequently
+    private static final float NEAR_THRESHOLD_FRACTION = 0.25f;
+
+    private String mAccountName;
+    private String mApplicationID;
+    private int mMetricID;
+    private float mThreshold;
+    private boolean mAbove;
+
+    private long mLastSeenTimestamp;
+    private boolean mTriggered;
+
+    public AlertRule(String accountName, String applicationID, int metricID, float threshold, boolean above) {
+        mAccountName = accountName;
+        mApplicationID = applicationID;
+        mMetricID = metricID;
+        mThreshold = threshold;
+        mAbove = above;
+    }
+
+    public String getAccountName() {
+        return mAccountName;
+    }
+
+    public String getApplicationID() {
+        return mApplicationID;
+    }
+
+    public int getMetricID() {
+        return mMetricID;
+    }
+
+    public float getThreshold() {
+        return mThreshold;
+    }
+
+    public boolean isAbove() {
+        return mAbove;
+    }
+
+    /** Identifies the rule, there's at most one per metric of an application */
+    public String getKey() {
+        return getKey(mAccountName, mApplicationID, mMetricID);
+    }
+
+    public static String getKey(String accountName, String applicationID, int metricID) {
+        return accountName + "/" + applicationID + "/" + metricID;
+    }
+
+    /** Identifies the rule's application, whose rules are polled together */
+    public String getApplicationKey() {
+        return mAccountName + "/" + mApplicationID;
+    }
+
+    public long getLastSeenTimestamp() {
+        return mLastSeenTimestamp;
+    }
+
+    public void setLastSeenTimestamp(long lastSeenTimestamp) {
+        mLastSeenTimestamp = lastSeenTimestamp;
+    }
+
+    public boolean isTriggered() {
+        return mTriggered;
+    }
+
+    public void setTriggered(boolean triggered) {
+        mTriggered = triggered;
+    }
+
+    /**
+     * Takes over the evaluation state of the given rule, unless its condition is different - then this rule's
+     * metric is evaluated from scratch.
+     */
+    public void copyStateFrom(AlertRule rule) {
+        if (rule.mThreshold != mThreshold || rule.mAbove != mAbove)
+            return;
+
+        mLastSeenTimestamp = rule.mLastSeenTimestamp;
+        mTriggered = rule.mTriggered;
+    }
+
+    public boolean isBreachedBy(float value) {
+        return mAbove ? value > mThreshold : value < mThreshold;
+    }
+
+    public boolean isNear(float value) {
+        return Math.abs(mThreshold - value) <= Math.abs(mThreshold) * NEAR_THRESHOLD_FRACTION;
+    }
+
+    /** Whether the first value is further past (or closer to) the threshold than the second one */
+    public boolean isWorse(float value, float otherValue) {
+        return mAbove ? value > otherValue : value < otherValue;
+    }
+}
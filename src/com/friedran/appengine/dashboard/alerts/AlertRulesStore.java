@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.alerts;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import com.friedran.appengine.dashboard.utils.LogUtils;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the alert rules and their polling schedule, alongside the app's other preferences
+ */
+public class AlertRulesStore {
+
+    private static final String KEY_ALERT_RULES = "KEY_ALERT_RULES";
+    private static final String KEY_ALERT_POLL_STATES = "KEY_ALERT_POLL_STATES";
+
+    private SharedPreferences mPreferences;
+
+
+    public AlertRulesStore(Context context) {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    /**
+     * @return The alert rules of every account and application, along with their evaluation state
+     */
+    public List<AlertRule> getAlertRules() {
+        String rulesJson = mPreferences.getString(KEY_ALERT_RULES, null);
+        if (rulesJson == null)
+            return new ArrayList<AlertRule>();
+
+        try {
+            AlertRule[] rules = (new Gson()).fromJson(rulesJson, AlertRule[].class);
+            return (rules != null) ? new ArrayList<AlertRule>(Arrays.asList(rules)) : new ArrayList<AlertRule>();
+
+        } catch (JsonSyntaxException e) {
+            LogUtils.e("AlertRulesStore", "Saved alert rules are corrupted, resetting them");
+            mPreferences.edit().remove(KEY_ALERT_RULES).commit();
+            return new ArrayList<AlertRule>();
+        }
+    }
+
+    public void saveAlertRules(List<AlertRule> rules) {
+        String rulesJson = (new Gson()).toJson(rules.toArray(new AlertRule[rules.size()]));
+        mPreferences.edit().putString(KEY_ALERT_RULES, rulesJson).commit();
+    }
+
+    /**
+     * @return The polling schedule of the alert rules, by application (see {@link AlertRule#getApplicationKey()})
+     */
+    public Map<String, AlertPollState> getAlertPollStates() {
+        String statesJson = mPreferences.getString(KEY_ALERT_POLL_STATES, null);
+        if (statesJson == null)
+            return new HashMap<String, AlertPollState>();
+
+        try {
+            Map<String, AlertPollState> states = (new Gson()).fromJson(statesJson,
+                    new TypeToken<HashMap<String, AlertPollState>>() {}.getType());
+            return (states != null) ? states : new HashMap<String, AlertPollState>();
+
+        } catch (JsonSyntaxException e) {
+            LogUtils.e("AlertRulesStore", "Saved alert poll states are corrupted, resetting them");
+            mPreferences.edit().remove(KEY_ALERT_POLL_STATES).commit();
+            return new HashMap<String, AlertPollState>();
+        }
+    }
+
+    public void saveAlertPollStates(Map<String, AlertPollState> states) {
+        mPreferences.edit().putString(KEY_ALERT_POLL_STATES, (new Gson()).toJson(states)).commit();
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.alerts;
+
+import android.accounts.Account;
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+
+import com.friedran.appengine.dashboard.R;
+import com.friedran.appengine.dashboard.client.AppEngineDashboardAPI;
+import com.friedran.appengine.dashboard.client.AppEngineDashboardAuthenticator;
+import com.friedran.appengine.dashboard.client.AppEngineDashboardClient;
+import com.friedran.appengine.dashboard.client.ChartUrlBatch;
+import com.friedran.appengine.dashboard.client.RequestScheduler;
+import com.friedran.appengine.dashboard.gui.LoginActivity;
+import com.friedran.appengine.dashboard.utils.ChartData;
+import com.friedran.appengine.dashboard.utils.ChartDataDecoder;
+import com.friedran.appengine.dashboard.utils.ChartTimeWindows;
+import com.friedran.appengine.dashboard.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates the alert rules in the background, and notifies when a metric goes past its threshold.
+ *
+ * Only the metrics that have rules are polled, with a single batch of chart requests per application, and their
+ * series are decoded from the returned chart URLs - no chart is downloaded. Each rule only evaluates the points that
+ * have arrived since its previous poll. The points' times are approximated (see {@link ChartDataDecoder}), but they
+ * stay the same across polls of the same window, so a point is evaluated once.
+ *
+ * Every application is polled at its own interval, which adapts to what it's seen: it's reset to the minimum
+ * while a metric is past or near its threshold, and doubles up to the maximum while everything's quiet or the
+ * polls fail. The maximum is within the duration of the finest time window, so every poll's chart reaches back to
+ * the previous one. A poll that's late anyway, as the device has been asleep, requests the finest window that covers
+ * the time since the previous one.
+ *
+ * The service is started by a non-waking alarm for the earliest application that's due, and polls every
+ * application that's due by then along with it, so the radio is woken up once rather than once per application.
+ * The next alarm is set before the polls start, as if they'll fail, so polling goes on even if the process is
+ * killed meanwhile. It stops itself once all its polls have completed.
+ */
+public class AlertService extends Service {
+    private static final String ACCOUNT_TYPE = "com.google";
+
+    // The finest time window, the one whose chart has the most recent points
+    private static final int FINEST_WINDOW_ID = 0;
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long MIN_POLL_INTERVAL_MILLIS = 5 * MINUTE_MILLIS;
+    // Leaves some room for a late alarm within the finest window
+    private static final long MAX_POLL_INTERVAL_MILLIS =
+            ChartTimeWindows.getDurationMillis(FINEST_WINDOW_ID) - MIN_POLL_INTERVAL_MILLIS;
+
+    // Applications due within this long of the one that has started the service are polled along with it
+    private static final long POLL_ALIGNMENT_MILLIS = 2 * MINUTE_MILLIS;
+
+    private AlertRulesStore mRulesStore;
+    private List<AlertRule> mRules;
+    private Map<String, AlertPollState> mPollStates;
+    private int mPendingPollsCount;
+    private String[] mMetricNames;
+
+    /**
+     * Starts polling whatever is due, and schedules the next poll. Should be called whenever the rules change.
+     */
+    public static void start(Context context) {
+        context.startService(new Intent(context, AlertService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mRulesStore = new AlertRulesStore(this);
+        mMetricNames = getResources().getStringArray(R.array.load_metric_options);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The polls in progress already cover whatever was due. The next poll is scheduled once they complete,
+        // taking any change to the rules into account.
+        if (mPendingPollsCount > 0)
+            return START_NOT_STICKY;
+
+        mRules = mRulesStore.getAlertRules();
+        mPollStates = mRulesStore.getAlertPollStates();
+
+        Map<String, List<AlertRule>> rulesByApplication = new HashMap<String, List<AlertRule>>();
+        for (AlertRule rule : mRules) {
+            List<AlertRule> applicationRules = rulesByApplication.get(rule.getApplicationKey());
+            if (applicationRules == null) {
+                applicationRules = new ArrayList<AlertRule>();
+                rulesByApplication.put(rule.getApplicationKey(), applicationRules);
+            }
+            applicationRules.add(rule);
+        }
+
+        long nowMillis = System.currentTimeMillis();
+        List<String> dueApplicationKeys = new ArrayList<String>();
+        Map<String, Long> previousIntervals = new HashMap<String, Long>();
+        for (Map.Entry<String, List<AlertRule>> entry : rulesByApplication.entrySet()) {
+            AlertPollState pollState = mPollStates.get(entry.getKey());
+            if (pollState == null) {
+                pollState = new AlertPollState(nowMillis, MIN_POLL_INTERVAL_MILLIS);
+                mPollStates.put(entry.getKey(), pollState);
+            }
+
+            if (pollState.getNextPollTime() <= nowMillis + POLL_ALIGNMENT_MILLIS) {
+                // Scheduled as if the poll fails, so polling goes on even if the process is killed before it completes
+                previousIntervals.put(entry.getKey(), pollState.getIntervalMillis());
+                pollState.schedule(nowMillis, getBackedOffInterval(pollState.getIntervalMillis()));
+                dueApplicationKeys.add(entry.getKey());
+            }
+        }
+
+        mRulesStore.saveAlertPollStates(mPollStates);
+        scheduleNextPoll();
+
+        for (String applicationKey : dueApplicationKeys) {
+            poll(rulesByApplication.get(applicationKey), mPollStates.get(applicationKey),
+                    previousIntervals.get(applicationKey), nowMillis);
+        }
+
+        if (mPendingPollsCount == 0)
+            finishPolling();
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    // Requests the charts of every metric of the application that has a rule, as a single batch
+    private void poll(final List<AlertRule> rules, final AlertPollState pollState, final long previousIntervalMillis,
+                      long nowMillis) {
+        AlertRule firstRule = rules.get(0);
+        AppEngineDashboardClient client = getClient(new Account(firstRule.getAccountName(), ACCOUNT_TYPE));
+
+        int[] metricIDs = new int[rules.size()];
+        int[] priorities = new int[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            metricIDs[i] = rules.get(i).getMetricID();
+            priorities[i] = RequestScheduler.PRIORITY_DEFERRED;
+        }
+
+        final int windowID = getPolledWindowID(rules, nowMillis);
+        LogUtils.i("AlertService", "Polling " + rules.size() + " alert rules of " + firstRule.getApplicationKey() +
+                ", window " + windowID);
+        mPendingPollsCount++;
+
+        client.executeGetChartUrls(firstRule.getApplicationID(), windowID, metricIDs, priorities,
+                new ChartUrlBatch.Callback() {
+                    // Whether any rule is past or near its threshold, so the application is polled more frequently
+                    boolean mIsActive;
+
+                    @Override
+                    public void onChartUrl(ChartUrlBatch batch, int metricID, Bundle result) {
+                        if (!result.getBoolean(AppEngineDashboardClient.KEY_RESULT))
+                            return;
+
+                        ChartData data = ChartDataDecoder.decode(result.getString(AppEngineDashboardClient.KEY_CHART_URL),
+                                System.currentTimeMillis(), ChartTimeWindows.getDurationMillis(windowID));
+                        if (data == null) {
+                            LogUtils.e("AlertService", "Couldn't decode the chart of metric " + metricID);
+                            return;
+                        }
+
+                        for (AlertRule rule : rules) {
+                            if (rule.getMetricID() == metricID && evaluate(rule, data))
+                                mIsActive = true;
+                        }
+                    }
+
+                    @Override
+                    public void onBatchCompleted(ChartUrlBatch batch, Bundle result) {
+                        long intervalMillis;
+                        if (mIsActive && result.getBoolean(AppEngineDashboardClient.KEY_RESULT))
+                            intervalMillis = MIN_POLL_INTERVAL_MILLIS;
+                        else
+                            intervalMillis = getBackedOffInterval(previousIntervalMillis);
+                        pollState.schedule(System.currentTimeMillis(), intervalMillis);
+
+                        mPendingPollsCount--;
+                        if (mPendingPollsCount == 0)
+                            finishPolling();
+                    }
+                });
+    }
+
+    private static long getBackedOffInterval(long intervalMillis) {
+        return Math.min(Math.max(intervalMillis, MIN_POLL_INTERVAL_MILLIS) * 2, MAX_POLL_INTERVAL_MILLIS);
+    }
+
+    // The finest window reaching back to the earliest point that any of the rules has yet to see
+    private static int getPolledWindowID(List<AlertRule> rules, long nowMillis) {
+        long earliestLastSeen = nowMillis;
+        for (AlertRule rule : rules) {
+            // A new rule only evaluates the latest points
+            if (rule.getLastSeenTimestamp() > 0)
+                earliestLastSeen = Math.min(earliestLastSeen, rule.getLastSeenTimestamp());
+        }
+
+        for (int windowID = FINEST_WINDOW_ID; windowID < ChartTimeWindows.getWindowsCount(); windowID++) {
+            if (ChartTimeWindows.getDurationMillis(windowID) >= nowMillis - earliestLastSeen)
+                return windowID;
+        }
+        return ChartTimeWindows.getWindowsCount() - 1;
+    }
+
+    /**
+     * Evaluates the points that have arrived since the rule's previous evaluation, and notifies when the metric
+     * goes past the threshold (or clears the notification when it's back).
+     * @return true if the metric is past or near the threshold
+     */
+    private boolean evaluate(AlertRule rule, ChartData data) {
+        long[] timestamps = data.getTimestamps();
+        long lastSeenTimestamp = rule.getLastSeenTimestamp();
+
+        boolean breached = false;
+        boolean near = false;
+        boolean latestBreached = rule.isTriggered();
+        float worstValue = Float.NaN;
+
+        for (int i = 0; i < timestamps.length; i++) {
+            if (timestamps[i] <= lastSeenTimestamp)
+                continue;
+
+            // A point breaches the rule if any of the metric's series does
+            boolean pointBreached = false;
+            boolean pointHasValue = false;
+            for (int s = 0; s < data.getSeriesCount(); s++) {
+                float value = data.getSeries(s)[i];
+                if (Float.isNaN(value))
+                    continue;
+
+                pointHasValue = true;
+                if (rule.isBreachedBy(value)) {
+                    pointBreached = true;
+                    if (Float.isNaN(worstValue) || rule.isWorse(value, worstValue))
+                        worstValue = value;
+                } else if (rule.isNear(value)) {
+                    near = true;
+                }
+            }
+
+            breached |= pointBreached;
+            if (pointHasValue)
+                latestBreached = pointBreached;
+        }
+
+        if (timestamps.length > 0)
+            rule.setLastSeenTimestamp(timestamps[timestamps.length - 1]);
+
+        if (breached && !rule.isTriggered())
+            notifyBreach(rule, worstValue);
+        else if (!latestBreached && rule.isTriggered())
+            cancelNotification(this, rule);
+        rule.setTriggered(latestBreached);
+
+        return breached || near;
+    }
+
+    private void notifyBreach(AlertRule rule, float value) {
+        String metricName = (rule.getMetricID() < mMetricNames.length) ? mMetricNames[rule.getMetricID()] : "";
+        String message = getString(rule.isAbove() ? R.string.alert_notification_above : R.string.alert_notification_below,
+                metricName, value, rule.getThreshold());
+        LogUtils.i("AlertService", rule.getApplicationID() + ": " + message);
+
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, LoginActivity.class), 0);
+        Notification notification = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(rule.getApplicationID())
+                .setContentText(message)
+                .setTicker(rule.getApplicationID() + ": " + message)
+                .setContentIntent(contentIntent)
+                .setAutoCancel(true)
+                .setDefaults(Notification.DEFAULT_ALL)
+                .build();
+
+        getNotificationManager().notify(rule.getKey(), 0, notification);
+    }
+
+    /** Clears the rule's notification, if it's still shown */
+    public static void cancelNotification(Context context, AlertRule rule) {
+        NotificationManager notificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.cancel(rule.getKey(), 0);
+    }
+
+    // Saves the rules' state and schedules the next poll
+    private void finishPolling() {
+        // The rules may have been changed meanwhile, so the state is carried over to the saved ones.
+        // Applications that have just got rules are polled right away.
+        Map<String, AlertRule> polledRules = new HashMap<String, AlertRule>();
+        for (AlertRule rule : mRules) {
+            polledRules.put(rule.getKey(), rule);
+        }
+
+        List<AlertRule> savedRules = mRulesStore.getAlertRules();
+        Set<String> applicationKeys = new HashSet<String>();
+        long nowMillis = System.currentTimeMillis();
+        for (AlertRule rule : savedRules) {
+            AlertRule polledRule = polledRules.get(rule.getKey());
+            if (polledRule != null)
+                rule.copyStateFrom(polledRule);
+
+            applicationKeys.add(rule.getApplicationKey());
+            if (!mPollStates.containsKey(rule.getApplicationKey()))
+                mPollStates.put(rule.getApplicationKey(), new AlertPollState(nowMillis, MIN_POLL_INTERVAL_MILLIS));
+        }
+        mPollStates.keySet().retainAll(applicationKeys);
+
+        mRulesStore.saveAlertRules(savedRules);
+        mRulesStore.saveAlertPollStates(mPollStates);
+        scheduleNextPoll();
+
+        stopSelf();
+    }
+
+    // Sets the alarm for the earliest application that's due, or cancels it if there are no rules left
+    private void scheduleNextPoll() {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pollIntent = PendingIntent.getService(this, 0, new Intent(this, AlertService.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        long nextPollTime = Long.MAX_VALUE;
+        for (AlertPollState pollState : mPollStates.values()) {
+            nextPollTime = Math.min(nextPollTime, pollState.getNextPollTime());
+        }
+
+        if (nextPollTime == Long.MAX_VALUE) {
+            alarmManager.cancel(pollIntent);
+        } else {
+            // Not waking the device up, a sleeping device polls as soon as it wakes up
+            alarmManager.set(AlarmManager.RTC, nextPollTime, pollIntent);
+        }
+    }
+
+    // The account's client, shared with the dashboard. Without one, a client of its own can't prompt the user,
+    // so its requests simply fail if the account requires any input.
+    private AppEngineDashboardClient getClient(Account account) {
+        AppEngineDashboardAPI appEngineAPI = AppEngineDashboardAPI.getInstance();
+        AppEngineDashboardClient client = appEngineAPI.getClient(account);
+        if (client != null)
+            return client;
+
+        client = new AppEngineDashboardClient(account, this,
+                new AppEngineDashboardAuthenticator.OnUserInputRequiredCallback() {
+                    @Override
+                    public void onUserInputRequired(Intent accountManagerIntent) {
+                        LogUtils.i("AlertService", "Authentication requires user input, skipping the alerts");
+                    }
+                },
+                new AppEngineDashboardClient.PostExecuteCallback() {
+                    @Override
+                    public void onPostExecute(Bundle result) {
+                        // The client re-authenticates by itself, nothing more to do
+                    }
+                });
+        appEngineAPI.setClient(account, client);
+        return client;
+    }
+
+    private NotificationManager getNotificationManager() {
+        return (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+}
@@ -23,10 +23,11 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 
 import com.friedran.appengine.dashboard.utils.LogUtils;
+import com.friedran.appengine.dashboard.utils.StartupTimings;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.DefaultHttpClient;
 
@@ -41,6 +42,14 @@ public class AppEngineDashboardAuthenticator {
     protected PostAuthenticateCallback mPostAuthenticateCallback;
     protected String mAuthToken;
 
+    // A token fetch started ahead of the authentication, the authentication continues with its result
+    protected boolean mPrefetchInProgress;
+    protected boolean mAuthenticationPending;
+    protected AccountManagerFuture<Bundle> mPrefetchedAuthToken;
+
+    // Bumped whenever the token is invalidated, so the result of a prefetch started before is dropped
+    protected int mPrefetchGeneration;
+
     public interface OnUserInputRequiredCallback {
         public void onUserInputRequired(Intent accountManagerIntent);
     }
@@ -60,6 +69,13 @@ public class AppEngineDashboardAuthenticator {
     }
 
     public void invalidateAuthToken() {
+        // A prefetched token may be the stale one as well, so it's fetched again by the next executeAuthentication(),
+        // which also takes over an authentication that's waiting for the prefetch
+        mPrefetchedAuthToken = null;
+        mPrefetchInProgress = false;
+        mAuthenticationPending = false;
+        mPrefetchGeneration++;
+
         if (mAuthToken == null) {
             LogUtils.e("AppEngineDashboardAuthenticator", "AuthToken hasn't been retrieved yet..");
             return;
@@ -70,33 +86,79 @@ public class AppEngineDashboardAuthenticator {
         mAuthToken = null;
     }
 
+    /**
+     * Starts fetching the auth token ahead of executeAuthentication(), which would then use its result.
+     */
+    public void prefetchAuthToken() {
+        if (mPrefetchInProgress || mPrefetchedAuthToken != null)
+            return;
+
+        LogUtils.i("AppEngineDashboardAuthenticator", "Prefetching the auth token...");
+        mPrefetchInProgress = true;
+        final int generation = mPrefetchGeneration;
+        AccountManager.get(mApplicationContext).getAuthToken(mAccount, AUTH_TOKEN_TYPE, false, new AccountManagerCallback<Bundle>() {
+            public void run(AccountManagerFuture<Bundle> result) {
+                if (generation != mPrefetchGeneration)
+                    return;
+
+                mPrefetchInProgress = false;
+                StartupTimings.mark(StartupTimings.STAGE_AUTH_TOKEN);
+
+                if (mAuthenticationPending) {
+                    mAuthenticationPending = false;
+                    onGetAuthTokenResult(result);
+                } else {
+                    mPrefetchedAuthToken = result;
+                }
+            }
+        }, null);
+    }
+
     public void executeAuthentication() {
+        // Continues with the prefetched token once it arrives
+        if (mPrefetchInProgress) {
+            mAuthenticationPending = true;
+            return;
+        }
+
+        if (mPrefetchedAuthToken != null) {
+            AccountManagerFuture<Bundle> prefetchedAuthToken = mPrefetchedAuthToken;
+            mPrefetchedAuthToken = null;
+            onGetAuthTokenResult(prefetchedAuthToken);
+            return;
+        }
+
         // Gets the auth token asynchronously, calling the callback with its result (uses the
         // deprecated API which is the only one supported from API level 5).
         AccountManager.get(mApplicationContext).getAuthToken(mAccount, AUTH_TOKEN_TYPE, false, new AccountManagerCallback<Bundle>() {
-            public void run(AccountManagerFuture result) {
-                Bundle bundle;
-                try {
-                    LogUtils.i("AppEngineDashboardAuthenticator", "GetAuthTokenCallback.onPostExecute started...");
-                    bundle = (Bundle) result.getResult();
-                    Intent intent = (Intent)bundle.get(AccountManager.KEY_INTENT);
-                    if(intent != null) {
-                        // User input required
-                        LogUtils.i("AppEngineDashboardAuthenticator", "User input is required...");
-                        mOnUserInputRequiredCallback.onUserInputRequired(intent);
-                    } else {
-                        LogUtils.i("AppEngineDashboardAuthenticator", "Authenticated, getting auth token...");
-                        onGetAuthToken(bundle);
-                    }
-                } catch (Exception e) {
-                    // Can happen because of various like connectivity issues, google server errors, etc.
-                    LogUtils.e("AppEngineDashboardAuthenticator", "Exception caught from GetAuthTokenCallback", e);
-                    mPostAuthenticateCallback.run(false);
-                }
+            public void run(AccountManagerFuture<Bundle> result) {
+                StartupTimings.mark(StartupTimings.STAGE_AUTH_TOKEN);
+                onGetAuthTokenResult(result);
             }
         }, null);
     }
 
+    protected void onGetAuthTokenResult(AccountManagerFuture<Bundle> result) {
+        Bundle bundle;
+        try {
+            LogUtils.i("AppEngineDashboardAuthenticator", "GetAuthTokenCallback.onPostExecute started...");
+            bundle = result.getResult();
+            Intent intent = (Intent)bundle.get(AccountManager.KEY_INTENT);
+            if(intent != null) {
+                // User input required
+                LogUtils.i("AppEngineDashboardAuthenticator", "User input is required...");
+                mOnUserInputRequiredCallback.onUserInputRequired(intent);
+            } else {
+                LogUtils.i("AppEngineDashboardAuthenticator", "Authenticated, getting auth token...");
+                onGetAuthToken(bundle);
+            }
+        } catch (Exception e) {
+            // Can happen because of various like connectivity issues, google server errors, etc.
+            LogUtils.e("AppEngineDashboardAuthenticator", "Exception caught from GetAuthTokenCallback", e);
+            mPostAuthenticateCallback.run(false);
+        }
+    }
+
     protected void onGetAuthToken(Bundle bundle) {
         mAuthToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
         LogUtils.i("AppEngineDashboardAuthenticator", "onGetAuthToken: Got the auth token " + mAuthToken);
@@ -115,12 +177,13 @@ public class AppEngineDashboardAuthenticator {
             try {
                 LogUtils.i("AppEngineDashboardAuthenticator", "LoginToAppEngine starting...");
 
-                // Don't follow redirects
-                mHttpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
-
                 String url = "https://appengine.google.com/_ah/login?continue=http://localhost/&auth=" + mAuthToken;
                 LogUtils.i("LoginToAppEngineTask", "Executing GET request: " + url);
                 HttpGet httpGet = new HttpGet(url);
+
+                // Don't follow redirects - set on the request itself, as the client is shared by concurrent requests
+                HttpClientParams.setRedirecting(httpGet.getParams(), false);
+
                 HttpResponse response;
                 response = mHttpClient.execute(httpGet);
                 response.getEntity().consumeContent();
@@ -138,8 +201,6 @@ public class AppEngineDashboardAuthenticator {
 
             } catch (IOException e) {
                 LogUtils.e("LoginToAppEngineTask", "IOException caught from authenticator logic", e);
-            } finally {
-                mHttpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
             }
             LogUtils.e("AppEngineDashboardAuthenticator", "LoginToAppEngine failed...");
 
@@ -149,6 +210,7 @@ public class AppEngineDashboardAuthenticator {
         @Override
         protected void onPostExecute(Boolean result) {
             LogUtils.i("AppEngineDashboardAuthenticator", "LoginToAppEngine onPostExecute");
+            StartupTimings.mark(StartupTimings.STAGE_APPENGINE_LOGIN);
             mPostAuthenticateCallback.run(result);
         }
     }
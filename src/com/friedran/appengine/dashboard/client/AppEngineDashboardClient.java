@@ -15,36 +15,78 @@ package com.friedran.appengine.dashboard.client;
 
 import android.accounts.Account;
 import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import com.friedran.appengine.dashboard.utils.AppEngineParserUtils;
+import com.friedran.appengine.dashboard.utils.ChartTimeWindows;
+import com.friedran.appengine.dashboard.utils.ExpiringLruCache;
 import com.friedran.appengine.dashboard.utils.LogUtils;
+import com.friedran.appengine.dashboard.utils.StartupTimings;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONObject;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class AppEngineDashboardClient {
     public static final String KEY_APPLICATIONS = "APPLICATIONS";
     public static final String KEY_CHART_URL = "CHART_URL";
+
+    // The stats requests of a single dashboard hit the same host, this bounds how many of them run at once
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    // Enough for every metric and window of a few applications
+    private static final int CHART_URLS_CACHE_SIZE = 512;
+
     protected Account mAccount;
     protected DefaultHttpClient mHttpClient;
     protected Context mApplicationContext;
     protected AppEngineDashboardAuthenticator mAuthenticator;
+    protected RequestScheduler mRequestScheduler;
+    protected ConnPerRouteBean mConnectionsPerRoute;
+    protected PersistentCookieStore mCookieStore;
 
     protected PostExecuteCallback mPostAuthenticateCallback;
 
     protected ArrayList<String> mLastRetrievedApplications;
 
+    // Requests currently running, by URL. Accessed only from the UI thread.
+    protected Map<String, AuthenticatedRequestTask> mInFlightRequests;
+
+    // Retrieved chart URLs by their GetChart request URL, each expires according to its time window
+    protected ExpiringLruCache<String> mChartUrlsCache;
+
+    protected Handler mMainThreadHandler;
+
+    // Requests that have found the session expired, waiting to be replayed once it's refreshed
+    protected boolean mSessionRefreshInProgress;
+    protected List<AuthenticatedRequestTask> mParkedRequests;
+
     public static final String KEY_RESULT = "RESULT";
+    public static final String KEY_SESSION_EXPIRED = "SESSION_EXPIRED";
+
+    private static final String APPENGINE_HOST = "appengine.google.com";
+    private static final String SESSION_COOKIE_NAME = "SACSID";
 
     public interface PostExecuteCallback {
         public void onPostExecute(Bundle result);
@@ -58,14 +100,40 @@ public class AppEngineDashboardClient {
         mPostAuthenticateCallback = postAuthenticationCallback;
 
         mLastRetrievedApplications = new ArrayList<String>();
-        mHttpClient = new DefaultHttpClient();
-
+        mInFlightRequests = new HashMap<String, AuthenticatedRequestTask>();
+        mChartUrlsCache = new ExpiringLruCache<String>(CHART_URLS_CACHE_SIZE);
+        mMainThreadHandler = new Handler(Looper.getMainLooper());
+        mConnectionsPerRoute = new ConnPerRouteBean(DEFAULT_MAX_REQUESTS_PER_HOST);
+        mHttpClient = PooledHttpClientFactory.create(mConnectionsPerRoute);
+        mCookieStore = new PersistentCookieStore(mApplicationContext, mAccount.name);
+        mHttpClient.setCookieStore(mCookieStore);
+        mRequestScheduler = new RequestScheduler(AsyncTask.THREAD_POOL_EXECUTOR, DEFAULT_MAX_REQUESTS_PER_HOST);
+
+        mParkedRequests = new ArrayList<AuthenticatedRequestTask>();
+
+        final AppEngineDashboardAuthenticator.OnUserInputRequiredCallback userInputRequiredCallback =
+                onUserInputRequiredCallback;
         mAuthenticator = new AppEngineDashboardAuthenticator(
                 mAccount, mHttpClient, mApplicationContext,
-                onUserInputRequiredCallback,
+                new AppEngineDashboardAuthenticator.OnUserInputRequiredCallback() {
+                    @Override
+                    public void onUserInputRequired(Intent accountManagerIntent) {
+                        // A background refresh can't prompt the user, the parked requests fail instead
+                        if (mSessionRefreshInProgress) {
+                            onSessionRefreshed(false);
+                            return;
+                        }
+                        userInputRequiredCallback.onUserInputRequired(accountManagerIntent);
+                    }
+                },
                 new AppEngineDashboardAuthenticator.PostAuthenticateCallback() {
                     @Override
                     public void run(boolean result) {
+                        if (mSessionRefreshInProgress) {
+                            onSessionRefreshed(result);
+                            return;
+                        }
+
                         Bundle bundle = new Bundle();
                         bundle.putBoolean(KEY_RESULT, result);
                         mPostAuthenticateCallback.onPostExecute(bundle);
@@ -85,11 +153,90 @@ public class AppEngineDashboardClient {
         mAuthenticator.invalidateAuthToken();
     }
 
+    /**
+     * @return true if there's an unexpired AppEngine session cookie from a previous login, with which requests can be
+     * sent without authenticating first. The server may still reject it, in which case the session is refreshed.
+     */
+    public boolean hasValidSession() {
+        return mCookieStore.getValidCookie(SESSION_COOKIE_NAME) != null;
+    }
+
+    /**
+     * Gets the client ready for the login while the UI is still starting up: fetches the auth token unless there's a
+     * stored session, and opens a pooled connection to AppEngine.
+     */
+    public void prewarm() {
+        // The stored cookies are still being loaded, so they're checked in the background
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                return hasValidSession();
+            }
+
+            @Override
+            protected void onPostExecute(Boolean hasValidSession) {
+                if (!hasValidSession)
+                    mAuthenticator.prefetchAuthToken();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
+        prewarmConnection();
+    }
+
+    /**
+     * Sends a cheap request to AppEngine in the background, so the DNS lookup and TLS handshake are already done
+     * (and the connection is kept alive in the pool) by the time the first real request is sent.
+     */
+    public void prewarmConnection() {
+        final String url = "https://appengine.google.com/";
+        mRequestScheduler.newTicket(APPENGINE_HOST, RequestScheduler.PRIORITY_VISIBLE).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HttpHead httpHead = new HttpHead(url);
+                    HttpClientParams.setRedirecting(httpHead.getParams(), false);
+
+                    HttpResponse response = mHttpClient.execute(httpHead);
+                    if (response.getEntity() != null)
+                        response.getEntity().consumeContent();
+
+                    StartupTimings.mark(StartupTimings.STAGE_CONNECTION_WARMED);
+                    LogUtils.i("AppEngineDashboardClient", "Connection pre-warmed: " + response.getStatusLine());
+
+                } catch (IOException e) {
+                    // Nothing's lost, the first request would just open the connection itself
+                    LogUtils.e("AppEngineDashboardClient", "Failed pre-warming the connection", e);
+                }
+            }
+        });
+    }
+
+    /** Forgets the stored session, the next requests would require authentication */
+    public void clearSession() {
+        mCookieStore.clear();
+    }
+
+    /**
+     * The scheduler of the client's requests, which other requests related to its dashboards (e.g. chart downloads)
+     * may share to be prioritized alongside them.
+     */
+    public RequestScheduler getRequestScheduler() {
+        return mRequestScheduler;
+    }
+
+    /**
+     * Sets how many authenticated requests may run concurrently against a single host.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        mRequestScheduler.setMaxRequestsPerHost(maxRequestsPerHost);
+        mConnectionsPerRoute.setDefaultMaxPerRoute(maxRequestsPerHost);
+    }
+
     /**
      * Send an authenticated GetApplications request asynchronously and return its results to the given callback.
      */
     public void executeGetApplications(final PostExecuteCallback postGetApplicationsCallback) {
-        new AuthenticatedRequestTask("https://appengine.google.com/",
+        executeAuthenticatedRequest("https://appengine.google.com/",
             new AuthenticatedRequestTaskBackgroundCallback() {
                 @Override
                 public Bundle run(final HttpEntity httpResponse) {
@@ -106,44 +253,218 @@ public class AppEngineDashboardClient {
                     }
                     return result;
                 }
-            }, postGetApplicationsCallback).executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+            }, null, RequestScheduler.PRIORITY_VISIBLE, postGetApplicationsCallback);
     }
 
     public List<String> getLastRetrievedApplications() {
         return mLastRetrievedApplications;
     }
 
+    /** Seeds the applications list with a previously retrieved one, until it's retrieved again */
+    public void setLastRetrievedApplications(List<String> applications) {
+        mLastRetrievedApplications = new ArrayList<String>(applications);
+    }
+
     /**
      * Send an authenticated GetChart request asynchronously and return its results to the given callback.
+     * A chart URL retrieved recently enough for its time window is returned from the cache instead.
      */
     public void executeGetChartUrl(
-            String appID, int chartTypeID, int chartWindowID, final PostExecuteCallback postGetChartUrlCallback) {
+            String appID, int chartTypeID, int chartWindowID, PostExecuteCallback postGetChartUrlCallback) {
+        executeGetChartUrl(appID, chartTypeID, chartWindowID, RequestScheduler.PRIORITY_DEFAULT, postGetChartUrlCallback);
+    }
+
+    /**
+     * Same as {@link #executeGetChartUrl(String, int, int, PostExecuteCallback)}, scheduled with the given
+     * RequestScheduler priority.
+     */
+    public void executeGetChartUrl(String appID, int chartTypeID, final int chartWindowID, int priority,
+                                   final PostExecuteCallback postGetChartUrlCallback) {
+
+        final String url = getChartUrlRequestUrl(appID, chartTypeID, chartWindowID);
+
+        String cachedChartUrl = mChartUrlsCache.get(url);
+        if (cachedChartUrl != null) {
+            final Bundle result = new Bundle();
+            result.putBoolean(KEY_RESULT, true);
+            result.putString(KEY_CHART_URL, cachedChartUrl);
 
-        String url = String.format(
+            // Still returned asynchronously, like any other result
+            mMainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    postGetChartUrlCallback.onPostExecute(result);
+                }
+            });
+            return;
+        }
+
+        executeAuthenticatedRequest(url, mChartUrlResponseParser, new PostExecuteCallback() {
+            @Override
+            public void onPostExecute(Bundle result) {
+                if (result.getBoolean(KEY_RESULT)) {
+                    mChartUrlsCache.put(url, result.getString(KEY_CHART_URL),
+                            ChartTimeWindows.getTimeToLiveMillis(chartWindowID));
+                }
+            }
+        }, priority, postGetChartUrlCallback);
+    }
+
+    /**
+     * Changes the priority of a GetChart request that's still waiting to be sent.
+     */
+    public void setGetChartUrlPriority(String appID, int chartTypeID, int chartWindowID, int priority) {
+        AuthenticatedRequestTask inFlightTask = mInFlightRequests.get(getChartUrlRequestUrl(appID, chartTypeID, chartWindowID));
+        if (inFlightTask != null)
+            inFlightTask.setPriority(priority);
+    }
+
+    /**
+     * Stops the given callback from receiving the result of a GetChart request. The request itself is aborted
+     * unless other callers are still waiting for it.
+     */
+    public void cancelGetChartUrl(String appID, int chartTypeID, int chartWindowID,
+                                  PostExecuteCallback postGetChartUrlCallback) {
+        cancelAuthenticatedRequest(getChartUrlRequestUrl(appID, chartTypeID, chartWindowID), postGetChartUrlCallback);
+    }
+
+    private static String getChartUrlRequestUrl(String appID, int chartTypeID, int chartWindowID) {
+        return String.format(
                 "https://appengine.google.com/dashboard/stats?app_id=s~%s&type=%d&window=%d",
                 appID, chartTypeID, chartWindowID);
+    }
 
-        new AuthenticatedRequestTask(url, new AuthenticatedRequestTaskBackgroundCallback() {
-                @Override
-                public Bundle run(final HttpEntity httpResponseEntity) {
-                    Bundle result = new Bundle();
+    /**
+     * Drops every cached chart URL, so the next requests would retrieve them from AppEngine again.
+     */
+    public void clearChartUrlsCache() {
+        mChartUrlsCache.evictAll();
+    }
 
-                    try {
-                        JSONObject jsonData = new JSONObject(EntityUtils.toString(httpResponseEntity));
-                        String chart_url = jsonData.getString("chart_url");
+    /**
+     * Send the GetChart requests of several metrics of the same application and time window together.
+     * The result of each metric is passed to the callback as soon as it arrives, followed by a single completion
+     * call once all of them are done. The returned batch can be cancelled and reprioritized as a whole.
+     *
+     * @param priorities The RequestScheduler priority of each of the chart types
+     */
+    public ChartUrlBatch executeGetChartUrls(String appID, int chartWindowID, int[] chartTypeIDs, int[] priorities,
+                                             ChartUrlBatch.Callback callback) {
+        final ChartUrlBatch batch = new ChartUrlBatch(this, appID, chartWindowID, chartTypeIDs, callback);
+        if (chartTypeIDs.length == 0) {
+            batch.notifyCompleted();
+            return batch;
+        }
 
-                        result.putBoolean(KEY_RESULT, true);
-                        result.putString(KEY_CHART_URL, chart_url);
+        for (int i = 0; i < chartTypeIDs.length; i++) {
+            executeGetChartUrl(appID, chartTypeIDs[i], chartWindowID, priorities[i], batch.getRequestCallback(i));
+        }
 
-                    } catch (Exception e) {
-                        LogUtils.e("AppEngineDashboardClient#onPostExecuteGetChartURL", "Exception caught when tried to parse result", e);
-                        e.printStackTrace();
-                        result.putBoolean(KEY_RESULT, false);
-                    }
+        return batch;
+    }
 
-                    return result;
-                }
-            }, postGetChartUrlCallback).executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+    /**
+     * Sends the request unless an identical one is already in flight, in which case the given callback joins it
+     * and receives the same result. Must be called from the UI thread.
+     *
+     * @param resultHook Called with the result before the callbacks, only by the caller that actually sent the request
+     */
+    private void executeAuthenticatedRequest(String url,
+                                             AuthenticatedRequestTaskBackgroundCallback backgroundCallback,
+                                             PostExecuteCallback resultHook,
+                                             int priority,
+                                             PostExecuteCallback postExecuteCallback) {
+        AuthenticatedRequestTask inFlightTask = mInFlightRequests.get(url);
+        if (inFlightTask != null) {
+            LogUtils.i("AppEngineDashboardClient", "Joining an in-flight request: " + url);
+            inFlightTask.addPostExecuteCallback(postExecuteCallback);
+            if (priority < inFlightTask.mPriority)
+                inFlightTask.setPriority(priority);
+            return;
+        }
+
+        AuthenticatedRequestTask task = new AuthenticatedRequestTask(url, backgroundCallback, resultHook, postExecuteCallback);
+        task.mPriority = priority;
+        mInFlightRequests.put(url, task);
+
+        // No point in sending it with a session that's known to be expired
+        if (mSessionRefreshInProgress)
+            mParkedRequests.add(task);
+        else
+            task.executeOnScheduler();
+    }
+
+    /**
+     * Parks a request that has found the session expired, and refreshes the session unless another request has
+     * already started doing so. Every parked request is replayed once the session is refreshed.
+     */
+    private void onSessionExpired(AuthenticatedRequestTask expiredTask) {
+        AuthenticatedRequestTask replayTask = expiredTask.createReplay();
+        mInFlightRequests.put(replayTask.mURL, replayTask);
+        mParkedRequests.add(replayTask);
+
+        if (mSessionRefreshInProgress)
+            return;
+
+        LogUtils.i("AppEngineDashboardClient", "The session has expired, re-authenticating...");
+        startSessionRefresh();
+    }
+
+    /**
+     * Starts re-authenticating in the background if there's no valid session, so the next requests won't have to
+     * be rejected first. They're held until the session is refreshed.
+     */
+    public void refreshSessionIfRequired() {
+        if (mSessionRefreshInProgress || hasValidSession())
+            return;
+
+        LogUtils.i("AppEngineDashboardClient", "No valid session, re-authenticating...");
+        startSessionRefresh();
+    }
+
+    private void startSessionRefresh() {
+        mSessionRefreshInProgress = true;
+        mCookieStore.clear();
+        mAuthenticator.invalidateAuthToken();
+        mAuthenticator.executeAuthentication();
+    }
+
+    private void onSessionRefreshed(boolean result) {
+        LogUtils.i("AppEngineDashboardClient", "Session refresh done, result = " + result);
+        mSessionRefreshInProgress = false;
+
+        List<AuthenticatedRequestTask> parkedRequests = new ArrayList<AuthenticatedRequestTask>(mParkedRequests);
+        mParkedRequests.clear();
+
+        Bundle failure = new Bundle();
+        failure.putBoolean(KEY_RESULT, false);
+        failure.putBoolean(KEY_SESSION_EXPIRED, true);
+
+        for (AuthenticatedRequestTask task : parkedRequests) {
+            // Sent with the refreshed session, or failed along with the refresh - either way the session isn't
+            // refreshed again because of them
+            task.mIsReplay = true;
+
+            if (result) {
+                task.executeOnScheduler();
+            } else {
+                if (mInFlightRequests.get(task.mURL) == task)
+                    mInFlightRequests.remove(task.mURL);
+                task.onPostExecute(failure);
+            }
+        }
+    }
+
+    private void cancelAuthenticatedRequest(String url, PostExecuteCallback postExecuteCallback) {
+        AuthenticatedRequestTask inFlightTask = mInFlightRequests.get(url);
+        if (inFlightTask == null)
+            return;
+
+        inFlightTask.removePostExecuteCallback(postExecuteCallback);
+        if (!inFlightTask.hasPostExecuteCallbacks()) {
+            LogUtils.i("AppEngineDashboardClient", "Aborting a request nobody waits for: " + url);
+            inFlightTask.abort();
+        }
     }
 
     /**
@@ -153,14 +474,70 @@ public class AppEngineDashboardClient {
     private class AuthenticatedRequestTask extends AsyncTask<String, Void, Bundle> {
         protected String mURL;
         protected AuthenticatedRequestTaskBackgroundCallback mBackgroundCallback;
-        protected AppEngineDashboardClient.PostExecuteCallback mPostExecuteCallback;
+        protected PostExecuteCallback mResultHook;
+        protected List<PostExecuteCallback> mPostExecuteCallbacks;
+        protected RequestScheduler.Ticket mTicket;
+        protected int mPriority = RequestScheduler.PRIORITY_DEFAULT;
+        protected boolean mIsReplay;
+        protected volatile HttpGet mHttpGet;
 
         public AuthenticatedRequestTask(String url,
                                         AuthenticatedRequestTaskBackgroundCallback backgroundCallback,
+                                        PostExecuteCallback resultHook,
                                         AppEngineDashboardClient.PostExecuteCallback postExecuteCallback) {
             mURL = url;
             mBackgroundCallback = backgroundCallback;
-            mPostExecuteCallback = postExecuteCallback;
+            mResultHook = resultHook;
+            mPostExecuteCallbacks = new ArrayList<PostExecuteCallback>();
+            mPostExecuteCallbacks.add(postExecuteCallback);
+        }
+
+        public void addPostExecuteCallback(PostExecuteCallback postExecuteCallback) {
+            mPostExecuteCallbacks.add(postExecuteCallback);
+        }
+
+        public void removePostExecuteCallback(PostExecuteCallback postExecuteCallback) {
+            mPostExecuteCallbacks.remove(postExecuteCallback);
+        }
+
+        public boolean hasPostExecuteCallbacks() {
+            return !mPostExecuteCallbacks.isEmpty();
+        }
+
+        /** An AsyncTask runs only once, so a request is replayed by an identical new task */
+        public AuthenticatedRequestTask createReplay() {
+            AuthenticatedRequestTask replayTask = new AuthenticatedRequestTask(mURL, mBackgroundCallback, mResultHook, null);
+            replayTask.mPostExecuteCallbacks = mPostExecuteCallbacks;
+            replayTask.mPriority = mPriority;
+            replayTask.mIsReplay = true;
+            return replayTask;
+        }
+
+        /** Queues the task behind the other requests to the same host */
+        public void executeOnScheduler() {
+            mTicket = mRequestScheduler.newTicket(Uri.parse(mURL).getHost(), mPriority);
+            executeOnExecutor(mTicket);
+        }
+
+        public void setPriority(int priority) {
+            mPriority = priority;
+            if (mTicket != null)
+                mTicket.setPriority(priority);
+        }
+
+        /** Drops the task from the scheduler's queue, or aborts its connection if it's already running */
+        public void abort() {
+            if (mInFlightRequests.get(mURL) == this)
+                mInFlightRequests.remove(mURL);
+            mParkedRequests.remove(this);
+
+            cancel(false);
+            if (mTicket != null)
+                mTicket.cancel();
+
+            HttpGet httpGet = mHttpGet;
+            if (httpGet != null)
+                httpGet.abort();
         }
 
         @Override
@@ -170,10 +547,21 @@ public class AppEngineDashboardClient {
             try {
                 LogUtils.i("AppEngineDashboardClient", "Executing authenticated request: " + mURL);
                 HttpGet httpGet = new HttpGet(mURL);
-                HttpResponse response = mHttpClient.execute(httpGet);
+                mHttpGet = httpGet;
+                if (isCancelled())
+                    return result;
+
+                HttpContext httpContext = new BasicHttpContext();
+                HttpResponse response = mHttpClient.execute(httpGet, httpContext);
 
                 HttpEntity responseEntity = response.getEntity();
-                result = mBackgroundCallback.run(responseEntity);
+                if (isSessionExpired(response, httpContext)) {
+                    LogUtils.i("AuthenticatedRequestTask", "Session expired while requesting " + mURL);
+                    result.putBoolean(KEY_RESULT, false);
+                    result.putBoolean(KEY_SESSION_EXPIRED, true);
+                } else {
+                    result = mBackgroundCallback.run(responseEntity);
+                }
 
                 // Finalizes the connection
                 responseEntity.consumeContent();
@@ -186,13 +574,68 @@ public class AppEngineDashboardClient {
             return result;
         }
 
+        /**
+         * An expired session either fails the request with a 401/403, or redirects it to Google's login page.
+         */
+        private boolean isSessionExpired(HttpResponse response, HttpContext httpContext) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_FORBIDDEN)
+                return true;
+
+            HttpHost finalHost = (HttpHost) httpContext.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+            if (finalHost != null && !APPENGINE_HOST.equalsIgnoreCase(finalHost.getHostName()))
+                return true;
+
+            HttpRequest finalRequest = (HttpRequest) httpContext.getAttribute(ExecutionContext.HTTP_REQUEST);
+            return finalRequest != null && finalRequest.getRequestLine().getUri().contains("/_ah/login");
+        }
+
         @Override
         protected void onPostExecute(final Bundle result) {
-            mPostExecuteCallback.onPostExecute(result);
+            // Replayed once the session is refreshed, unless it has already been replayed
+            if (result.getBoolean(KEY_SESSION_EXPIRED) && !mIsReplay && mInFlightRequests.get(mURL) == this) {
+                onSessionExpired(this);
+                return;
+            }
+
+            if (mInFlightRequests.get(mURL) == this)
+                mInFlightRequests.remove(mURL);
+
+            if (mResultHook != null)
+                mResultHook.onPostExecute(result);
+
+            // Every joined caller gets the same result, parsed once
+            for (PostExecuteCallback callback : mPostExecuteCallbacks) {
+                callback.onPostExecute(result);
+            }
         }
     }
 
     private interface AuthenticatedRequestTaskBackgroundCallback {
         public Bundle run(HttpEntity responseEntity);
     }
+
+    /** Stateless, so a single instance is shared by every GetChart request */
+    private final AuthenticatedRequestTaskBackgroundCallback mChartUrlResponseParser =
+            new AuthenticatedRequestTaskBackgroundCallback() {
+                @Override
+                public Bundle run(final HttpEntity httpResponseEntity) {
+                    Bundle result = new Bundle();
+
+                    try {
+                        // Streams the response instead of buffering it, only chart_url is of interest
+                        String chart_url = AppEngineParserUtils.getChartUrl(httpResponseEntity.getContent());
+
+                        result.putBoolean(KEY_RESULT, true);
+                        result.putString(KEY_CHART_URL, chart_url);
+
+                    } catch (Exception e) {
+                        LogUtils.e("AppEngineDashboardClient#onPostExecuteGetChartURL", "Exception caught when tried to parse result", e);
+                        e.printStackTrace();
+                        result.putBoolean(KEY_RESULT, false);
+                    }
+
+                    return result;
+                }
+            };
 }
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.client;
+
+import android.os.Bundle;
+
+/**
+ * The chart URL requests of several metrics of a single application and time window, scheduled together.
+ * Per-metric results are streamed to the callback as they arrive, followed by a single completion call.
+ *
+ * All the methods are called on the UI thread.
+ */
+public class ChartUrlBatch {
+    private final AppEngineDashboardClient mClient;
+    private final String mAppID;
+    private final int mChartWindowID;
+    private final int[] mChartTypeIDs;
+    private final Callback mCallback;
+    private final AppEngineDashboardClient.PostExecuteCallback[] mRequestCallbacks;
+
+    private int mPendingCount;
+    private int mFailedCount;
+    private boolean mCancelled;
+
+    public interface Callback {
+        /** Called when the chart URL of a single metric has been retrieved, or has failed */
+        public void onChartUrl(ChartUrlBatch batch, int chartTypeID, Bundle result);
+
+        /** Called once after every metric in the batch has completed, KEY_RESULT is true if all have succeeded */
+        public void onBatchCompleted(ChartUrlBatch batch, Bundle result);
+    }
+
+    ChartUrlBatch(AppEngineDashboardClient client, String appID, int chartWindowID, int[] chartTypeIDs,
+                  Callback callback) {
+        mClient = client;
+        mAppID = appID;
+        mChartWindowID = chartWindowID;
+        mChartTypeIDs = chartTypeIDs.clone();
+        mCallback = callback;
+        mPendingCount = mChartTypeIDs.length;
+
+        mRequestCallbacks = new AppEngineDashboardClient.PostExecuteCallback[mChartTypeIDs.length];
+        for (int i = 0; i < mChartTypeIDs.length; i++) {
+            final int chartTypeID = mChartTypeIDs[i];
+            mRequestCallbacks[i] = new AppEngineDashboardClient.PostExecuteCallback() {
+                @Override
+                public void onPostExecute(Bundle result) {
+                    onChartUrlResult(chartTypeID, result);
+                }
+            };
+        }
+    }
+
+    public String getAppID() {
+        return mAppID;
+    }
+
+    public int getChartWindowID() {
+        return mChartWindowID;
+    }
+
+    public int[] getChartTypeIDs() {
+        return mChartTypeIDs.clone();
+    }
+
+    public boolean isCompleted() {
+        return mPendingCount == 0;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Stops delivering results to the callback, and aborts the requests no one else is waiting for.
+     */
+    public void cancel() {
+        if (mCancelled || isCompleted())
+            return;
+
+        mCancelled = true;
+        for (int i = 0; i < mChartTypeIDs.length; i++) {
+            mClient.cancelGetChartUrl(mAppID, mChartTypeIDs[i], mChartWindowID, mRequestCallbacks[i]);
+        }
+    }
+
+    /**
+     * Changes the priority of the given chart type's request if it's still waiting to be sent.
+     */
+    public void setPriority(int chartTypeID, int priority) {
+        if (mCancelled)
+            return;
+
+        mClient.setGetChartUrlPriority(mAppID, chartTypeID, mChartWindowID, priority);
+    }
+
+    AppEngineDashboardClient.PostExecuteCallback getRequestCallback(int index) {
+        return mRequestCallbacks[index];
+    }
+
+    private void onChartUrlResult(int chartTypeID, Bundle result) {
+        // Results already posted before the batch was cancelled
+        if (mCancelled)
+            return;
+
+        if (!result.getBoolean(AppEngineDashboardClient.KEY_RESULT))
+            mFailedCount++;
+
+        mCallback.onChartUrl(this, chartTypeID, result);
+
+        mPendingCount--;
+        if (mPendingCount == 0)
+            notifyCompleted();
+    }
+
+    /** Used for an empty batch, which is completed as soon as it's created */
+    void notifyCompleted() {
+        Bundle result = new Bundle();
+        result.putBoolean(AppEngineDashboardClient.KEY_RESULT, mFailedCount == 0);
+        mCallback.onBatchCompleted(this, result);
+    }
+}
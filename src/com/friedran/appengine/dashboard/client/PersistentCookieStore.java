@@ -0,0 +1,343 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Base64;
+import com.friedran.appengine.dashboard.utils.LogUtils;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A CookieStore that keeps the cookies of a single account on disk, so an AppEngine session survives the process.
+ *
+ * The cookies are stored encrypted with AES in the app's private preferences. The key is generated on the first
+ * run and kept in a separate private preferences file - this protects the cookies from being read off a copied
+ * preferences file, not from someone with access to the app's whole data directory. The app isn't backed up at all
+ * (android:allowBackup is off), so neither file ends up in a backup.
+ *
+ * The stored cookies are decrypted in the background as soon as the store is created, and the first access waits
+ * for them. Changes are saved in the background SAVE_DELAY_MILLIS after the first one, so the cookies of a response
+ * (and of concurrent responses) are encrypted and written once rather than per Set-Cookie header.
+ *
+ * Session cookies (without an expiry date) are persisted as well, and are considered expired
+ * SESSION_COOKIE_LIFETIME_MILLIS after they were received.
+ */
+public class PersistentCookieStore implements CookieStore {
+    private static final String COOKIES_PREFERENCES_NAME = "cookies";
+    private static final String KEY_PREFERENCES_NAME = "cookies_key";
+    private static final String KEY_SECRET_KEY = "KEY_SECRET_KEY";
+
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int KEY_SIZE_BITS = 128;
+    private static final int IV_SIZE_BYTES = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long SESSION_COOKIE_LIFETIME_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long SAVE_DELAY_MILLIS = 500;
+
+    private final BasicCookieStore mCookieStore;
+    private final SharedPreferences mCookiesPreferences;
+    private final SharedPreferences mKeyPreferences;
+    private final String mPreferenceKey;
+    private final Gson mGson;
+
+    // Guarded by the store's lock
+    private boolean mLoaded;
+    private boolean mSavePending;
+
+    // Held while a snapshot of the cookies is saved, so an older snapshot never overwrites a newer one
+    private final Object mSaveLock = new Object();
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param storeID Identifies the stored cookies, so each account can keep its own session
+     */
+    public PersistentCookieStore(Context context, String storeID) {
+        mCookieStore = new BasicCookieStore();
+        mCookiesPreferences = context.getSharedPreferences(COOKIES_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mKeyPreferences = context.getSharedPreferences(KEY_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mPreferenceKey = "KEY_COOKIES_" + storeID;
+        mGson = new Gson();
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PersistentCookieStore.this) {
+                    try {
+                        load();
+                    } finally {
+                        mLoaded = true;
+                        PersistentCookieStore.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    // Called with the lock held
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public synchronized void addCookie(Cookie cookie) {
+        awaitLoaded();
+        mCookieStore.addCookie(toPersistableCookie(cookie));
+        scheduleSave();
+    }
+
+    /**
+     * @return A copy of the cookies - the requests sharing the store add cookies while others iterate them
+     */
+    @Override
+    public synchronized List<Cookie> getCookies() {
+        awaitLoaded();
+        return new ArrayList<Cookie>(mCookieStore.getCookies());
+    }
+
+    @Override
+    public synchronized boolean clearExpired(Date date) {
+        awaitLoaded();
+        boolean cleared = mCookieStore.clearExpired(date);
+        if (cleared)
+            scheduleSave();
+        return cleared;
+    }
+
+    @Override
+    public synchronized void clear() {
+        awaitLoaded();
+        reset();
+    }
+
+    private void reset() {
+        mCookieStore.clear();
+        scheduleSave();
+    }
+
+    /**
+     * @return The cookie with the given name if it's stored and hasn't expired yet, otherwise null
+     */
+    public synchronized Cookie getValidCookie(String name) {
+        awaitLoaded();
+        Date now = new Date();
+        for (Cookie cookie : mCookieStore.getCookies()) {
+            if (cookie.getName().equals(name) && !cookie.isExpired(now))
+                return cookie;
+        }
+        return null;
+    }
+
+    /** Gives session cookies an expiry date, as they're kept beyond the session */
+    private Cookie toPersistableCookie(Cookie cookie) {
+        if (cookie.getExpiryDate() != null)
+            return cookie;
+
+        BasicClientCookie persistableCookie = new BasicClientCookie(cookie.getName(), cookie.getValue());
+        persistableCookie.setDomain(cookie.getDomain());
+        persistableCookie.setPath(cookie.getPath());
+        persistableCookie.setSecure(cookie.isSecure());
+        persistableCookie.setVersion(cookie.getVersion());
+        persistableCookie.setExpiryDate(new Date(System.currentTimeMillis() + SESSION_COOKIE_LIFETIME_MILLIS));
+        return persistableCookie;
+    }
+
+    private void load() {
+        String encryptedCookies = mCookiesPreferences.getString(mPreferenceKey, null);
+        if (encryptedCookies == null)
+            return;
+
+        try {
+            StoredCookie[] storedCookies = mGson.fromJson(decrypt(encryptedCookies), StoredCookie[].class);
+            Date now = new Date();
+            for (StoredCookie storedCookie : storedCookies) {
+                Cookie cookie = storedCookie.toCookie();
+                if (!cookie.isExpired(now))
+                    mCookieStore.addCookie(cookie);
+            }
+            LogUtils.i("PersistentCookieStore", "Loaded " + mCookieStore.getCookies().size() + " cookies");
+
+        } catch (GeneralSecurityException e) {
+            LogUtils.e("PersistentCookieStore", "Failed decrypting the stored cookies, resetting them", e);
+            reset();
+        } catch (JsonSyntaxException e) {
+            LogUtils.e("PersistentCookieStore", "Stored cookies are corrupted, resetting them", e);
+            reset();
+        }
+    }
+
+    // Called with the lock held
+    private void scheduleSave() {
+        if (mSavePending)
+            return;
+
+        mSavePending = true;
+        mMainThreadHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        save();
+                    }
+                });
+            }
+        }, SAVE_DELAY_MILLIS);
+    }
+
+    private void save() {
+        synchronized (mSaveLock) {
+            List<Cookie> cookies;
+            synchronized (this) {
+                mSavePending = false;
+                cookies = new ArrayList<Cookie>(mCookieStore.getCookies());
+            }
+
+            if (cookies.isEmpty()) {
+                applyChanges(mCookiesPreferences.edit().remove(mPreferenceKey));
+                return;
+            }
+
+            List<StoredCookie> storedCookies = new ArrayList<StoredCookie>(cookies.size());
+            for (Cookie cookie : cookies) {
+                storedCookies.add(new StoredCookie(cookie));
+            }
+
+            try {
+                String encryptedCookies = encrypt(mGson.toJson(storedCookies));
+                applyChanges(mCookiesPreferences.edit().putString(mPreferenceKey, encryptedCookies));
+
+            } catch (GeneralSecurityException e) {
+                // The cookies still work in memory, the session just won't survive a restart
+                LogUtils.e("PersistentCookieStore", "Failed encrypting the cookies, not persisting them", e);
+            }
+        }
+    }
+
+    // Writes the preferences asynchronously where possible, the in-memory preferences are updated either way
+    private static void applyChanges(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            editor.apply();
+        else
+            editor.commit();
+    }
+
+    private String encrypt(String plainText) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_SIZE_BYTES];
+        new SecureRandom().nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(), new IvParameterSpec(iv));
+        byte[] cipherText = cipher.doFinal(plainText.getBytes(UTF_8));
+
+        // The IV isn't secret, it's stored right before the cipher text
+        byte[] ivAndCipherText = new byte[iv.length + cipherText.length];
+        System.arraycopy(iv, 0, ivAndCipherText, 0, iv.length);
+        System.arraycopy(cipherText, 0, ivAndCipherText, iv.length, cipherText.length);
+        return Base64.encodeToString(ivAndCipherText, Base64.NO_WRAP);
+    }
+
+    private String decrypt(String encryptedText) throws GeneralSecurityException {
+        byte[] ivAndCipherText;
+        try {
+            ivAndCipherText = Base64.decode(encryptedText, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Stored cookies aren't valid Base64", e);
+        }
+        if (ivAndCipherText.length <= IV_SIZE_BYTES)
+            throw new GeneralSecurityException("Stored cookies are too short: " + ivAndCipherText.length);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), new IvParameterSpec(ivAndCipherText, 0, IV_SIZE_BYTES));
+        byte[] plainText = cipher.doFinal(ivAndCipherText, IV_SIZE_BYTES, ivAndCipherText.length - IV_SIZE_BYTES);
+        return new String(plainText, UTF_8);
+    }
+
+    private SecretKey getSecretKey() throws GeneralSecurityException {
+        String encodedKey = mKeyPreferences.getString(KEY_SECRET_KEY, null);
+        if (encodedKey != null)
+            return new SecretKeySpec(Base64.decode(encodedKey, Base64.NO_WRAP), "AES");
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(KEY_SIZE_BITS, new SecureRandom());
+        SecretKey secretKey = keyGenerator.generateKey();
+        mKeyPreferences.edit().putString(KEY_SECRET_KEY, Base64.encodeToString(secretKey.getEncoded(), Base64.NO_WRAP))
+                .commit();
+        return secretKey;
+    }
+
+    /** The serialized form of a cookie, HttpClient's cookies can't be serialized by Gson directly */
+    private static class StoredCookie {
+        String name;
+        String value;
+        String domain;
+        String path;
+        long expiryDate;
+        boolean secure;
+        int version;
+
+        StoredCookie(Cookie cookie) {
+            name = cookie.getName();
+            value = cookie.getValue();
+            domain = cookie.getDomain();
+            path = cookie.getPath();
+            expiryDate = cookie.getExpiryDate().getTime();
+            secure = cookie.isSecure();
+            version = cookie.getVersion();
+        }
+
+        Cookie toCookie() {
+            BasicClientCookie cookie = new BasicClientCookie(name, value);
+            cookie.setDomain(domain);
+            cookie.setPath(path);
+            cookie.setExpiryDate(new Date(expiryDate));
+            cookie.setSecure(secure);
+            cookie.setVersion(version);
+            return cookie;
+        }
+    }
+}
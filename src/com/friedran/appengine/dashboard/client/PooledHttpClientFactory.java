@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.client;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Creates the HttpClient shared by an AppEngineDashboardClient and its authenticator.
+ *
+ * The client keeps a pool of connections per host, so concurrent requests can safely share it and consecutive
+ * requests reuse an already negotiated TLS connection instead of opening a new one.
+ * Nothing should modify the client's params after its creation - per-request settings (such as redirect
+ * handling) belong on the request's own params.
+ */
+public class PooledHttpClientFactory {
+    private static final int MAX_TOTAL_CONNECTIONS = 16;
+    private static final int CONNECTION_TIMEOUT_MILLIS = 20 * 1000;
+    private static final int SOCKET_TIMEOUT_MILLIS = 30 * 1000;
+
+    // Used when the server doesn't tell us how long it keeps an idle connection open
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    /**
+     * @param connectionsPerRoute The maximal number of pooled connections per host. The bean can be updated later on
+     *                            and the pool would follow.
+     */
+    public static DefaultHttpClient create(ConnPerRouteBean connectionsPerRoute) {
+        return create(connectionsPerRoute, SSLSocketFactory.getSocketFactory());
+    }
+
+    /**
+     * @param sslSocketFactory Creates the https connections, tests pass one that trusts their local server
+     */
+    public static DefaultHttpClient create(ConnPerRouteBean connectionsPerRoute, SSLSocketFactory sslSocketFactory) {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_MILLIS);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MILLIS);
+
+        // Pooled connections may have been closed by the server while idle
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, connectionsPerRoute);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", sslSocketFactory, 443));
+
+        ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager, params);
+        httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+
+        return httpClient;
+    }
+
+    /**
+     * Honors the server's Keep-Alive timeout, and otherwise keeps idle connections for a bounded time.
+     */
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            BasicHeaderElementIterator iterator = new BasicHeaderElementIterator(
+                    response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+
+            while (iterator.hasNext()) {
+                HeaderElement element = iterator.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException e) {
+                        // Ignore and fallback to the default
+                    }
+                }
+            }
+
+            return DEFAULT_KEEP_ALIVE_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.client;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs requests concurrently on a shared executor while never letting more than a fixed number of them
+ * hit the same host at once. Requests waiting for a host are dispatched by their priority, and in the order they
+ * were submitted within the same priority. The priority of a waiting request can be changed.
+ *
+ * Hosts take turns for the executor, one request each per turn, so a host with a long queue can't starve the others
+ * once the executor is saturated. A request the executor rejects waits for the next one to finish, or for a retry
+ * with a growing delay when none of the scheduler's requests is running.
+ *
+ * Usage: obtain a {@link Ticket} for the request's host and pass it to {@code AsyncTask.executeOnExecutor}.
+ */
+public class RequestScheduler {
+    // Lower values are dispatched first
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_NEAR = 1;
+    public static final int PRIORITY_DEFERRED = 2;
+    public static final int PRIORITY_DEFAULT = PRIORITY_NEAR;
+
+    static final long MIN_RETRY_DELAY_MILLIS = 100;
+    static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+    private final Executor mExecutor;
+    private final Handler mRetryHandler;
+    private final Map<String, HostQueue> mHostQueues;
+    // The hosts with waiting or running requests, in the order they take turns from mNextHostIndex
+    private final List<HostQueue> mHostTurns;
+    private int mNextHostIndex;
+    private int mMaxRequestsPerHost;
+    private int mRunningCount;
+    private long mNextSequence;
+
+    private boolean mRetryPosted;
+    private long mRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+    public RequestScheduler(Executor executor, int maxRequestsPerHost) {
+        this(executor, new Handler(Looper.getMainLooper()), maxRequestsPerHost);
+    }
+
+    RequestScheduler(Executor executor, Handler retryHandler, int maxRequestsPerHost) {
+        mExecutor = executor;
+        mRetryHandler = retryHandler;
+        mHostQueues = new HashMap<String, HostQueue>();
+        mHostTurns = new ArrayList<HostQueue>();
+        setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1)
+            throw new IllegalArgumentException("maxRequestsPerHost must be positive: " + maxRequestsPerHost);
+
+        mMaxRequestsPerHost = maxRequestsPerHost;
+
+        // A raised limit should take effect immediately for requests that are already waiting
+        dispatchLocked();
+    }
+
+    public synchronized int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * Creates a new ticket for a single request to the given host.
+     */
+    public Ticket newTicket(String host) {
+        return new Ticket(host, PRIORITY_DEFAULT);
+    }
+
+    public Ticket newTicket(String host, int priority) {
+        return new Ticket(host, priority);
+    }
+
+    private synchronized void enqueue(Ticket ticket) {
+        HostQueue hostQueue = mHostQueues.get(ticket.mHost);
+        if (hostQueue == null) {
+            hostQueue = new HostQueue(ticket.mHost);
+            mHostQueues.put(ticket.mHost, hostQueue);
+            mHostTurns.add(hostQueue);
+        }
+
+        ticket.mSequence = mNextSequence++;
+        hostQueue.mWaiting.add(ticket);
+        dispatchLocked();
+    }
+
+    private synchronized boolean dequeue(Ticket ticket) {
+        HostQueue hostQueue = mHostQueues.get(ticket.mHost);
+        if (hostQueue == null || !hostQueue.mWaiting.remove(ticket))
+            return false;
+
+        removeIfIdleLocked(hostQueue);
+        return true;
+    }
+
+    private synchronized void reprioritize(Ticket ticket, int priority) {
+        if (ticket.mPriority == priority)
+            return;
+
+        // The queue's order can't change under a waiting ticket, so it's re-inserted
+        HostQueue hostQueue = mHostQueues.get(ticket.mHost);
+        boolean waiting = hostQueue != null && hostQueue.mWaiting.remove(ticket);
+        ticket.mPriority = priority;
+        if (waiting)
+            hostQueue.mWaiting.add(ticket);
+    }
+
+    private synchronized void onFinished(Ticket ticket) {
+        HostQueue hostQueue = mHostQueues.get(ticket.mHost);
+        hostQueue.mRunning--;
+        mRunningCount--;
+
+        // The executor has room again, also for requests to other hosts that it has rejected meanwhile
+        dispatchLocked();
+        removeIfIdleLocked(hostQueue);
+    }
+
+    private void removeIfIdleLocked(HostQueue hostQueue) {
+        if (hostQueue.mRunning > 0 || !hostQueue.mWaiting.isEmpty())
+            return;
+
+        mHostQueues.remove(hostQueue.mHost);
+        int index = mHostTurns.indexOf(hostQueue);
+        mHostTurns.remove(index);
+        if (index < mNextHostIndex)
+            mNextHostIndex--;
+    }
+
+    /**
+     * Dispatches the waiting requests that are within their host's limit, one host at a time, until none is left
+     * or the executor rejects one.
+     */
+    private void dispatchLocked() {
+        int idleHosts = 0;
+        while (idleHosts < mHostTurns.size()) {
+            if (mNextHostIndex >= mHostTurns.size())
+                mNextHostIndex = 0;
+
+            HostQueue hostQueue = mHostTurns.get(mNextHostIndex);
+            if (hostQueue.mRunning >= mMaxRequestsPerHost || hostQueue.mWaiting.isEmpty()) {
+                mNextHostIndex++;
+                idleHosts++;
+                continue;
+            }
+
+            // The host keeps its turn if it's rejected, so it's the first to go once the executor has room
+            if (!dispatchNextLocked(hostQueue))
+                return;
+            mNextHostIndex++;
+            idleHosts = 0;
+        }
+    }
+
+    private boolean dispatchNextLocked(HostQueue hostQueue) {
+        final Ticket ticket = hostQueue.mWaiting.poll();
+        hostQueue.mRunning++;
+        mRunningCount++;
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ticket.mCommand.run();
+                    } finally {
+                        onFinished(ticket);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The executor is saturated, so the request waits at the head of its queue again
+            hostQueue.mRunning--;
+            mRunningCount--;
+            hostQueue.mWaiting.add(ticket);
+            if (mRunningCount == 0)
+                postRetryLocked();
+            return false;
+        }
+
+        mRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+        return true;
+    }
+
+    // With nothing of ours running, no request will finish to dispatch the rejected ones, so they're retried later
+    private void postRetryLocked() {
+        if (mRetryPosted)
+            return;
+
+        mRetryPosted = true;
+        mRetryHandler.postDelayed(mRetry, mRetryDelayMillis);
+        mRetryDelayMillis = Math.min(mRetryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+    }
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RequestScheduler.this) {
+                mRetryPosted = false;
+                dispatchLocked();
+            }
+        }
+    };
+
+    private static final Comparator<Ticket> TICKETS_ORDER = new Comparator<Ticket>() {
+        @Override
+        public int compare(Ticket lhs, Ticket rhs) {
+            if (lhs.mPriority != rhs.mPriority)
+                return (lhs.mPriority < rhs.mPriority) ? -1 : 1;
+            return (lhs.mSequence < rhs.mSequence) ? -1 : ((lhs.mSequence == rhs.mSequence) ? 0 : 1);
+        }
+    };
+
+    private static class HostQueue {
+        final String mHost;
+        final PriorityQueue<Ticket> mWaiting = new PriorityQueue<Ticket>(11, TICKETS_ORDER);
+        int mRunning;
+
+        HostQueue(String host) {
+            mHost = host;
+        }
+    }
+
+    /**
+     * An Executor accepting exactly one command, which is queued behind the other requests to the same host.
+     */
+    public class Ticket implements Executor {
+        private final String mHost;
+        private Runnable mCommand;
+
+        // Guarded by the scheduler's lock
+        private int mPriority;
+        private long mSequence;
+
+        private Ticket(String host, int priority) {
+            mHost = (host != null) ? host : "";
+            mPriority = priority;
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (mCommand != null)
+                throw new IllegalStateException("A ticket can only be used for a single request");
+
+            mCommand = command;
+            enqueue(this);
+        }
+
+        /**
+         * Moves the request within its host's queue. Has no effect once the request has been dispatched.
+         */
+        public void setPriority(int priority) {
+            reprioritize(this, priority);
+        }
+
+        /**
+         * Removes the request from the queue if it's still waiting for its turn.
+         * @return false if the request has already been dispatched (or was never queued)
+         */
+        public boolean cancel() {
+            return dequeue(this);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.gui;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.RadioButton;
+import android.widget.Toast;
+
+import com.friedran.appengine.dashboard.R;
+import com.friedran.appengine.dashboard.alerts.AlertRule;
+import com.friedran.appengine.dashboard.alerts.AlertRulesStore;
+import com.friedran.appengine.dashboard.alerts.AlertService;
+
+import java.util.List;
+
+/**
+ * Lets the user set, change or remove the alert rule of a metric of an application. Any change restarts the
+ * AlertService, so it's polled on the new rules.
+ */
+public class AlertRuleDialog {
+    private final Context mContext;
+    private final String mAccountName;
+    private final String mApplicationID;
+    private final int mMetricID;
+    private final String mRuleKey;
+    private final AlertRulesStore mRulesStore;
+
+    public AlertRuleDialog(Context context, String accountName, String applicationID, int metricID) {
+        mContext = context;
+        mAccountName = accountName;
+        mApplicationID = applicationID;
+        mMetricID = metricID;
+        mRuleKey = AlertRule.getKey(accountName, applicationID, metricID);
+        mRulesStore = new AlertRulesStore(context);
+    }
+
+    public void show(String metricName) {
+        AlertRule existingRule = null;
+        for (AlertRule rule : mRulesStore.getAlertRules()) {
+            if (rule.getKey().equals(mRuleKey))
+                existingRule = rule;
+        }
+
+        View dialogView = LayoutInflater.from(mContext).inflate(R.layout.alert_rule_dialog, null);
+        final EditText thresholdText = (EditText) dialogView.findViewById(R.id.alert_rule_threshold);
+        final RadioButton aboveButton = (RadioButton) dialogView.findViewById(R.id.alert_rule_above);
+        RadioButton belowButton = (RadioButton) dialogView.findViewById(R.id.alert_rule_below);
+        if (existingRule != null) {
+            thresholdText.setText(String.valueOf(existingRule.getThreshold()));
+            aboveButton.setChecked(existingRule.isAbove());
+            belowButton.setChecked(!existingRule.isAbove());
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(mContext)
+                .setTitle(mContext.getString(R.string.alert_rule_title, metricName))
+                .setView(dialogView)
+                .setNegativeButton(android.R.string.cancel, null)
+                .setPositiveButton(R.string.alert_rule_save, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        float threshold;
+                        try {
+                            threshold = Float.parseFloat(thresholdText.getText().toString());
+                        } catch (NumberFormatException e) {
+                            Toast.makeText(mContext, R.string.alert_rule_invalid_threshold, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+
+                        saveRule(new AlertRule(mAccountName, mApplicationID, mMetricID, threshold,
+                                aboveButton.isChecked()));
+                    }
+                });
+
+        if (existingRule != null) {
+            builder.setNeutralButton(R.string.alert_rule_remove, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    saveRule(null);
+                }
+            });
+        }
+
+        builder.show();
+    }
+
+    // Replaces the metric's rule with the given one, or just removes it if null
+    private void saveRule(AlertRule rule) {
+        List<AlertRule> rules = removeRule(mRulesStore.getAlertRules());
+        if (rule != null)
+            rules.add(rule);
+        mRulesStore.saveAlertRules(rules);
+        AlertService.start(mContext);
+    }
+
+    // Removes the metric's rule and clears its notification
+    private List<AlertRule> removeRule(List<AlertRule> rules) {
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            if (rules.get(i).getKey().equals(mRuleKey)) {
+                AlertService.cancelNotification(mContext, rules.get(i));
+                rules.remove(i);
+            }
+        }
+        return rules;
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.gui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import com.friedran.appengine.dashboard.client.RequestScheduler;
+import com.friedran.appengine.dashboard.utils.ChartCache;
+import com.friedran.appengine.dashboard.utils.ChartTimeWindows;
+import com.friedran.appengine.dashboard.utils.CompressedChartCache;
+import com.friedran.appengine.dashboard.utils.DiskLruCache;
+import com.friedran.appengine.dashboard.utils.LogUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Loads the chart images of a dashboard in the background: downloads them (through the disk cache) on the request
+ * scheduler, or decodes them again from the CompressedChartCache once their decoded charts have been evicted.
+ * Every decoded chart is put in the ChartCache, and its compressed bytes in the CompressedChartCache.
+ *
+ * Charts found in the disk cache are read into the heap rather than decoded with
+ * BitmapFactory.decodeFileDescriptor, since their bytes are what the CompressedChartCache keeps. A chart evicted from
+ * the ChartCache is then decoded again without its URL or disk I/O, for a single copy of the PNG.
+ *
+ * At most one download and one decode run per metric. All the methods, and the {@link Listener}, are called on the
+ * UI thread.
+ */
+public class ChartLoader {
+    public static final long CHARTS_DISK_CACHE_SIZE_BYTES = 10 * 1024 * 1024;
+    public static final String CHARTS_DISK_CACHE_DIRECTORY = "charts";
+    private static final int CHART_READ_BUFFER_SIZE = 8 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Receives the charts that have been loaded and cached. Loads that have been cancelled aren't reported.
+     */
+    public interface Listener {
+        /** A downloaded (or found on disk) chart, or null if it has failed */
+        public void onChartDownloaded(int metricID, int windowID, Bitmap chart);
+
+        /** A chart decoded again from the CompressedChartCache */
+        public void onChartDecoded(int metricID, int windowID, Bitmap chart);
+
+        /** The compressed chart was corrupted, and has been removed from the CompressedChartCache */
+        public void onChartDecodeFailed(int metricID, int windowID);
+    }
+
+    // Downloaded chart images by their URL, behind the memory cache. Shared by every loader, opened lazily on the
+    // first download since reading its journal is disk I/O.
+    private static DiskLruCache sChartsDiskCache;
+    private static boolean sChartsDiskCacheUnavailable;
+
+    private final File mDiskCacheDirectory;
+    private final RequestScheduler mRequestScheduler;
+    private final int mChartsScopeID;
+    private final Listener mListener;
+    private final ChartCache mChartCache;
+    private final CompressedChartCache mCompressedChartCache;
+
+    // Chart downloads currently running, by metric ID
+    private SparseArray<ChartDownloadTask> mInFlightDownloads = new SparseArray<ChartDownloadTask>();
+
+    // Decodes of compressed charts currently running, by metric ID
+    private SparseArray<ChartDecodeTask> mInFlightDecodes = new SparseArray<ChartDecodeTask>();
+
+    // Incremented whenever the loads are cancelled, those started before are dropped
+    private volatile int mLoadGeneration;
+
+    /**
+     * @param chartsScopeID The scope of the charts in the caches, see {@link ChartCache#getScopeID}
+     */
+    public ChartLoader(Context context, RequestScheduler requestScheduler, int chartsScopeID, Listener listener) {
+        mDiskCacheDirectory = new File(context.getCacheDir(), CHARTS_DISK_CACHE_DIRECTORY);
+        mRequestScheduler = requestScheduler;
+        mChartsScopeID = chartsScopeID;
+        mListener = listener;
+        mChartCache = ChartCache.getInstance();
+        mCompressedChartCache = CompressedChartCache.getInstance();
+    }
+
+    /**
+     * Downloads the chart, unless the same one is already downloading. Downloads share the client's scheduler, so
+     * they're prioritized just like its requests.
+     * @param targetWidth The size of the view the chart is displayed in, it's subsampled if it's much larger
+     */
+    public void download(int metricID, int windowID, String chartUrl, int priority, int targetWidth,
+                         int targetHeight) {
+        ChartDownloadTask inFlightTask = mInFlightDownloads.get(metricID);
+        if (inFlightTask != null && inFlightTask.mUrl.equals(chartUrl))
+            return;
+
+        ChartDownloadTask task = new ChartDownloadTask(windowID, metricID, chartUrl, targetWidth, targetHeight);
+        mInFlightDownloads.put(metricID, task);
+        task.mTicket = mRequestScheduler.newTicket(Uri.parse(chartUrl).getHost(), priority);
+        task.executeOnExecutor(task.mTicket);
+    }
+
+    public boolean isDownloading(int metricID) {
+        return mInFlightDownloads.get(metricID) != null;
+    }
+
+    /** Has no effect if the metric's chart isn't downloading, or its download has already been dispatched */
+    public void setDownloadPriority(int metricID, int priority) {
+        ChartDownloadTask task = mInFlightDownloads.get(metricID);
+        if (task != null)
+            task.mTicket.setPriority(priority);
+    }
+
+    /**
+     * Decodes the chart from the compressed cache, unless it's already decoding.
+     * @return false if the chart isn't in the compressed cache, so it has to be requested again
+     */
+    public boolean decode(int metricID, int windowID, int targetWidth, int targetHeight) {
+        ChartDecodeTask inFlightTask = mInFlightDecodes.get(metricID);
+        if (inFlightTask != null && inFlightTask.mTimeWindowID == windowID)
+            return true;
+
+        long chartKey = ChartCache.getKey(mChartsScopeID, metricID, windowID);
+        byte[] chartBytes = mCompressedChartCache.getStale(chartKey);
+        if (chartBytes == null)
+            return false;
+
+        ChartDecodeTask task = new ChartDecodeTask(windowID, metricID, chartBytes,
+                mCompressedChartCache.getTimeToLiveMillis(chartKey), targetWidth, targetHeight);
+        mInFlightDecodes.put(metricID, task);
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return true;
+    }
+
+    /** Drops every running download and decode, before it gets decoded if it hasn't already */
+    public void cancelAll() {
+        mLoadGeneration++;
+
+        for (int i = 0; i < mInFlightDownloads.size(); i++) {
+            ChartDownloadTask task = mInFlightDownloads.valueAt(i);
+            task.cancel(true);
+            task.mTicket.cancel();
+        }
+        mInFlightDownloads.clear();
+
+        for (int i = 0; i < mInFlightDecodes.size(); i++) {
+            mInFlightDecodes.valueAt(i).cancel(true);
+        }
+        mInFlightDecodes.clear();
+    }
+
+    /**
+     * Caches a decoded chart, or passes it to the pool if it has been superseded. Cached here on the UI thread
+     * rather than in the background, so evictions release bitmaps on the UI thread.
+     */
+    private void cacheChart(int metricID, int windowID, Bitmap chart, long timeToLiveMillis, boolean superseded) {
+        if (chart == null)
+            return;
+
+        if (superseded)
+            mChartCache.getBitmapPool().put(chart);
+        else
+            mChartCache.put(ChartCache.getKey(mChartsScopeID, metricID, windowID), chart, timeToLiveMillis);
+    }
+
+    /** Downloads a chart image and decodes it asynchronously */
+    private class ChartDownloadTask extends AsyncTask<String, Void, Bitmap> {
+        int mTimeWindowID;
+        int mMetricTypeID;
+        String mUrl;
+        int mGeneration;
+        RequestScheduler.Ticket mTicket;
+
+        long mChartKey;
+        int mTargetWidth;
+        int mTargetHeight;
+
+        public ChartDownloadTask(int timeWindowID, int metricTypeID, String url, int targetWidth, int targetHeight) {
+            mTimeWindowID = timeWindowID;
+            mMetricTypeID = metricTypeID;
+            mUrl = url;
+            mGeneration = mLoadGeneration;
+            mChartKey = ChartCache.getKey(mChartsScopeID, metricTypeID, timeWindowID);
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
+        }
+
+        private boolean isSuperseded() {
+            return isCancelled() || mGeneration != mLoadGeneration;
+        }
+
+        @Override
+        protected Bitmap doInBackground(String... params) {
+            try {
+                DiskLruCache diskCache = getChartsDiskCache(mDiskCacheDirectory);
+                String diskCacheKey = getChartDiskCacheKey(mUrl);
+
+                File chartFile = (diskCache != null) ? diskCache.get(diskCacheKey) : null;
+                if (chartFile != null) {
+                    LogUtils.i("ChartLoader", String.format("Chart (%s, %s) found on disk", mTimeWindowID, mMetricTypeID));
+                    Bitmap chart = readAndDecodeChart(chartFile);
+                    if (chart != null || isSuperseded())
+                        return chart;
+
+                    // Never expires by itself, so a truncated or corrupted entry would fail every later load
+                    LogUtils.e("ChartLoader", String.format("Chart (%s, %s) is unreadable on disk, downloading it again", mTimeWindowID, mMetricTypeID));
+                    diskCache.remove(diskCacheKey);
+                }
+
+                LogUtils.i("ChartLoader", String.format("Downloading chart (%s, %s) from: %s", mTimeWindowID, mMetricTypeID, mUrl));
+                byte[] chartBytes = null;
+                InputStream in = new java.net.URL(mUrl).openStream();
+                try {
+                    if (isSuperseded())
+                        return null;
+
+                    if (diskCache != null)
+                        chartFile = diskCache.put(diskCacheKey, in);
+                    else
+                        chartBytes = readChartBytes(in);
+                } finally {
+                    in.close();
+                }
+
+                if (chartFile != null) {
+                    Bitmap chart = readAndDecodeChart(chartFile);
+                    if (chart == null && !isSuperseded())
+                        diskCache.remove(diskCacheKey);
+                    return chart;
+                }
+                return decodeAndCacheChart(chartBytes);
+
+            } catch (Exception e) {
+                LogUtils.e("ChartLoader", e.getMessage(), e);
+                return null;
+            }
+        }
+
+        // The file may also have been evicted by another download meanwhile, which is as good as unreadable
+        private Bitmap readAndDecodeChart(File chartFile) {
+            try {
+                return decodeAndCacheChart(readChartFile(chartFile));
+            } catch (IOException e) {
+                LogUtils.e("ChartLoader", "Failed reading chart from disk: " + chartFile, e);
+                return null;
+            }
+        }
+
+        private Bitmap decodeAndCacheChart(byte[] chartBytes) {
+            if (chartBytes == null || isSuperseded())
+                return null;
+
+            Bitmap chart = decodeChartBytes(chartBytes, mTargetWidth, mTargetHeight);
+
+            // Kept compressed even once the decoded chart is evicted, for another decode later on
+            if (chart != null)
+                mCompressedChartCache.put(mChartKey, chartBytes, ChartTimeWindows.getTimeToLiveMillis(mTimeWindowID));
+            return chart;
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap result) {
+            if (mInFlightDownloads.get(mMetricTypeID) == this)
+                mInFlightDownloads.remove(mMetricTypeID);
+
+            // A decode of the previous (expired) chart would only replace this one
+            ChartDecodeTask decodeTask = mInFlightDecodes.get(mMetricTypeID);
+            if (decodeTask != null && decodeTask.mTimeWindowID == mTimeWindowID) {
+                decodeTask.cancel(true);
+                mInFlightDecodes.remove(mMetricTypeID);
+            }
+
+            cacheChart(mMetricTypeID, mTimeWindowID, result, ChartTimeWindows.getTimeToLiveMillis(mTimeWindowID),
+                    isSuperseded());
+            if (!isSuperseded())
+                mListener.onChartDownloaded(mMetricTypeID, mTimeWindowID, result);
+        }
+    }
+
+    /** Decodes a compressed chart asynchronously */
+    private class ChartDecodeTask extends AsyncTask<Void, Void, Bitmap> {
+        int mTimeWindowID;
+        int mMetricTypeID;
+        byte[] mChartBytes;
+        long mTimeToLiveMillis;
+        int mGeneration;
+        int mTargetWidth;
+        int mTargetHeight;
+
+        public ChartDecodeTask(int timeWindowID, int metricTypeID, byte[] chartBytes, long timeToLiveMillis,
+                               int targetWidth, int targetHeight) {
+            mTimeWindowID = timeWindowID;
+            mMetricTypeID = metricTypeID;
+            mChartBytes = chartBytes;
+            mTimeToLiveMillis = timeToLiveMillis;
+            mGeneration = mLoadGeneration;
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
+        }
+
+        private boolean isSuperseded() {
+            return isCancelled() || mGeneration != mLoadGeneration;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            if (isSuperseded())
+                return null;
+            return decodeChartBytes(mChartBytes, mTargetWidth, mTargetHeight);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap result) {
+            if (mInFlightDecodes.get(mMetricTypeID) == this)
+                mInFlightDecodes.remove(mMetricTypeID);
+
+            cacheChart(mMetricTypeID, mTimeWindowID, result, mTimeToLiveMillis, isSuperseded());
+            if (isSuperseded())
+                return;
+
+            if (result != null) {
+                mListener.onChartDecoded(mMetricTypeID, mTimeWindowID, result);
+            } else {
+                // Corrupted, so it's requested again
+                mCompressedChartCache.remove(ChartCache.getKey(mChartsScopeID, mMetricTypeID, mTimeWindowID));
+                mListener.onChartDecodeFailed(mMetricTypeID, mTimeWindowID);
+            }
+        }
+    }
+
+    private static synchronized DiskLruCache getChartsDiskCache(File directory) {
+        if (sChartsDiskCache == null && !sChartsDiskCacheUnavailable) {
+            try {
+                sChartsDiskCache = DiskLruCache.open(directory, CHARTS_DISK_CACHE_SIZE_BYTES);
+            } catch (IOException e) {
+                // Charts are still downloaded, just not kept on disk
+                LogUtils.e("ChartLoader", "Failed opening the charts disk cache", e);
+                sChartsDiskCacheUnavailable = true;
+            }
+        }
+
+        return sChartsDiskCache;
+    }
+
+    /**
+     * Hashes the chart URL with its parameters sorted, as the same chart may be requested with a different order.
+     */
+    private static String getChartDiskCacheKey(String chartUrl) {
+        Uri uri = Uri.parse(chartUrl);
+        String query = uri.getEncodedQuery();
+        String[] parameters = (query != null) ? query.split("&") : new String[0];
+        Arrays.sort(parameters);
+        String normalizedUrl = uri.getHost() + uri.getEncodedPath() + "?" + TextUtils.join("&", parameters);
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(normalizedUrl.getBytes("UTF-8"));
+            char[] key = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                key[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                key[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+            }
+            return new String(key);
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Charts are opaque (drawn over a solid background) so they're decoded without alpha, at half the memory.
+     * They're decoded as mutable so their memory can be reused through the pool later on.
+     */
+    private static BitmapFactory.Options createChartDecodeOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        return options;
+    }
+
+    /** Reads a whole compressed chart file in a single array of its length */
+    private static byte[] readChartFile(File chartFile) throws IOException {
+        FileInputStream in = new FileInputStream(chartFile);
+        try {
+            long length = in.getChannel().size();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("Chart file is too large: " + chartFile);
+
+            byte[] chartBytes = new byte[(int) length];
+            int offset = 0;
+            while (offset < chartBytes.length) {
+                int count = in.read(chartBytes, offset, chartBytes.length - offset);
+                if (count == -1)
+                    throw new IOException("Chart file was truncated while reading: " + chartFile);
+                offset += count;
+            }
+            return chartBytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Reads a whole compressed chart of an unknown length, which is a few KB, and closes the stream */
+    private static byte[] readChartBytes(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(CHART_READ_BUFFER_SIZE);
+            byte[] buffer = new byte[CHART_READ_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The chart is subsampled if it's at least twice as large as its cell, and decoded into a pooled bitmap when
+     * there's one.
+     */
+    private static Bitmap decodeChartBytes(byte[] chartBytes, int targetWidth, int targetHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(chartBytes, 0, chartBytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int sampleSize = getSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+        BitmapFactory.Options decodeOptions = createChartDecodeOptions();
+        decodeOptions.inSampleSize = sampleSize;
+
+        // Before KitKat a bitmap can only be reused by a decode of the exact same size, without subsampling
+        if (sampleSize == 1)
+            decodeOptions.inBitmap = ChartCache.getInstance().getBitmapPool()
+                    .get(options.outWidth, options.outHeight, Bitmap.Config.RGB_565);
+
+        try {
+            return BitmapFactory.decodeByteArray(chartBytes, 0, chartBytes.length, decodeOptions);
+
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap couldn't be reused after all (e.g. an indexed PNG), decode a new one
+            LogUtils.e("ChartLoader", "Failed decoding into a pooled bitmap", e);
+            decodeOptions.inBitmap = null;
+            return BitmapFactory.decodeByteArray(chartBytes, 0, chartBytes.length, decodeOptions);
+        }
+    }
+
+    /** The largest power of 2 that keeps the decoded chart at least as large as its target */
+    private static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0)
+            return sampleSize;
+
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+}
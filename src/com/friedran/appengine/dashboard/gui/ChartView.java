@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.gui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.os.AsyncTask;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.friedran.appengine.dashboard.R;
+import com.friedran.appengine.dashboard.utils.ChartData;
+
+/**
+ * Draws a line chart from its data, at whatever size the view has. Charts whose data can't be decoded are
+ * displayed from their rendered image instead, scaled to fit the view.
+ *
+ * No more than a point per pixel is drawn: whenever the data or the width changes, the data is downsampled in the
+ * background (unless it's already been, for that width) and drawn at its full resolution meanwhile.
+ */
+public class ChartView extends View {
+    private static final int GRID_LINES_COUNT = 4;
+    private static final float LINE_WIDTH_DP = 1.5f;
+    private static final float LABEL_TEXT_SIZE_SP = 10;
+    private static final float PADDING_DP = 4;
+
+    private ChartData mData;
+    private Bitmap mBitmap;
+
+    // The data as it's drawn, downsampled to the view's width once that's done
+    private ChartData mDrawnData;
+    private DownsampleTask mDownsampleTask;
+
+    // The labels of the value axis, formatted once per chart rather than on every draw
+    private String mMinValueLabel;
+    private String mMaxValueLabel;
+
+    private final Paint mLinePaint;
+    private final Paint mGridPaint;
+    private final Paint mLabelPaint;
+    private final Paint mBitmapPaint;
+    private final Path mPath = new Path();
+    private final Rect mBitmapBounds = new Rect();
+    private final int mBackgroundColor;
+    private final float mPadding;
+
+    public ChartView(Context context) {
+        this(context, null);
+    }
+
+    public ChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        float density = getResources().getDisplayMetrics().density;
+        float scaledDensity = getResources().getDisplayMetrics().scaledDensity;
+        mPadding = PADDING_DP * density;
+        mBackgroundColor = getResources().getColor(R.color.background_gray);
+
+        mLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mLinePaint.setStyle(Paint.Style.STROKE);
+        mLinePaint.setStrokeWidth(LINE_WIDTH_DP * density);
+        mLinePaint.setStrokeJoin(Paint.Join.ROUND);
+
+        mGridPaint = new Paint();
+        mGridPaint.setColor(getResources().getColor(R.color.divider_gray));
+
+        mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mLabelPaint.setColor(getResources().getColor(R.color.text_gray));
+        mLabelPaint.setTextSize(LABEL_TEXT_SIZE_SP * scaledDensity);
+
+        mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    }
+
+    public void setChartData(ChartData data) {
+        mData = data;
+        mBitmap = null;
+        mMinValueLabel = formatValue(data.getMinValue());
+        mMaxValueLabel = formatValue(data.getMaxValue());
+        updateDrawnData();
+        invalidate();
+    }
+
+    public void setChartBitmap(Bitmap bitmap) {
+        mBitmap = bitmap;
+        mData = null;
+        updateDrawnData();
+        invalidate();
+    }
+
+    public void clear() {
+        mData = null;
+        mBitmap = null;
+        updateDrawnData();
+        invalidate();
+    }
+
+    public boolean hasChart() {
+        return mData != null || mBitmap != null;
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        if (width != oldWidth)
+            updateDrawnData();
+    }
+
+    // Picks the downsampled data for the current width, or starts downsampling it
+    private void updateDrawnData() {
+        if (mDownsampleTask != null) {
+            mDownsampleTask.cancel(false);
+            mDownsampleTask = null;
+        }
+
+        mDrawnData = mData;
+        int maxPoints = (int) (getWidth() - 2 * mPadding);
+        if (mData == null || maxPoints <= 0 || mData.getPointsCount() <= maxPoints)
+            return;
+
+        ChartData downsampled = mData.peekDownsampled(maxPoints);
+        if (downsampled != null) {
+            mDrawnData = downsampled;
+        } else {
+            mDownsampleTask = new DownsampleTask(mData, maxPoints);
+            mDownsampleTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    private class DownsampleTask extends AsyncTask<Void, Void, ChartData> {
+        ChartData mChartData;
+        int mMaxPoints;
+
+        DownsampleTask(ChartData chartData, int maxPoints) {
+            mChartData = chartData;
+            mMaxPoints = maxPoints;
+        }
+
+        @Override
+        protected ChartData doInBackground(Void... params) {
+            // Memoized by the chart, so the other cells showing it don't downsample it again
+            return mChartData.getDownsampled(mMaxPoints);
+        }
+
+        @Override
+        protected void onPostExecute(ChartData result) {
+            // Neither the data nor the width has changed since
+            if (mDownsampleTask != this)
+                return;
+
+            mDownsampleTask = null;
+            mDrawnData = result;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mDrawnData != null) {
+            drawData(canvas, mDrawnData);
+        } else if (mBitmap != null) {
+            drawBitmap(canvas, mBitmap);
+        }
+    }
+
+    private void drawData(Canvas canvas, ChartData data) {
+        canvas.drawColor(mBackgroundColor);
+        if (data.getPointsCount() == 0)
+            return;
+
+        float left = mPadding;
+        float top = mPadding;
+        float right = getWidth() - mPadding;
+        float bottom = getHeight() - mPadding;
+        if (right <= left || bottom <= top)
+            return;
+
+        for (int i = 0; i <= GRID_LINES_COUNT; i++) {
+            float y = top + (bottom - top) * i / GRID_LINES_COUNT;
+            canvas.drawLine(left, y, right, y, mGridPaint);
+        }
+
+        // Placed by their time, points merged from charts of different resolutions aren't evenly spread
+        long[] timestamps = data.getTimestamps();
+        long startTime = timestamps[0];
+        long timeRange = timestamps[timestamps.length - 1] - startTime;
+        float xScale = (timeRange > 0) ? (right - left) / timeRange : 0;
+        float yScale = (bottom - top) / (data.getMaxValue() - data.getMinValue());
+
+        for (int seriesIndex = 0; seriesIndex < data.getSeriesCount(); seriesIndex++) {
+            float[] values = data.getSeries(seriesIndex);
+            mPath.reset();
+
+            // Missing values break the line
+            boolean lineStarted = false;
+            for (int i = 0; i < values.length; i++) {
+                if (Float.isNaN(values[i])) {
+                    lineStarted = false;
+                    continue;
+                }
+
+                float x = left + (timestamps[i] - startTime) * xScale;
+                float y = bottom - (values[i] - data.getMinValue()) * yScale;
+                if (lineStarted) {
+                    mPath.lineTo(x, y);
+                } else {
+                    mPath.moveTo(x, y);
+                    lineStarted = true;
+                }
+            }
+
+            mLinePaint.setColor(data.getColor(seriesIndex));
+            canvas.drawPath(mPath, mLinePaint);
+        }
+
+        canvas.drawText(mMaxValueLabel, left, top - mLabelPaint.ascent(), mLabelPaint);
+        canvas.drawText(mMinValueLabel, left, bottom - mLabelPaint.descent(), mLabelPaint);
+    }
+
+    // Scaled to fit the view, keeping its aspect ratio, and centered
+    private void drawBitmap(Canvas canvas, Bitmap bitmap) {
+        float scale = Math.min((float) getWidth() / bitmap.getWidth(), (float) getHeight() / bitmap.getHeight());
+        int width = Math.round(bitmap.getWidth() * scale);
+        int height = Math.round(bitmap.getHeight() * scale);
+        int left = (getWidth() - width) / 2;
+        int top = (getHeight() - height) / 2;
+
+        mBitmapBounds.set(left, top, left + width, top + height);
+        canvas.drawBitmap(bitmap, null, mBitmapBounds, mBitmapPaint);
+    }
+
+    private static String formatValue(float value) {
+        if (value == Math.rint(value))
+            return String.valueOf((long) value);
+        return String.format("%.2f", value);
+    }
+}
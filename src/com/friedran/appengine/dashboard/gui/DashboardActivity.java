@@ -35,11 +35,15 @@ import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.friedran.appengine.dashboard.R;
+import com.friedran.appengine.dashboard.alerts.AlertService;
 import com.friedran.appengine.dashboard.client.AppEngineDashboardAPI;
 import com.friedran.appengine.dashboard.client.AppEngineDashboardClient;
 import com.friedran.appengine.dashboard.utils.AnalyticsUtils;
+import com.friedran.appengine.dashboard.utils.ChartCache;
+import com.friedran.appengine.dashboard.utils.CompressedChartCache;
 import com.friedran.appengine.dashboard.utils.DashboardPreferences;
 import com.friedran.appengine.dashboard.utils.LogUtils;
+import com.friedran.appengine.dashboard.utils.StartupTimings;
 import com.google.analytics.tracking.android.EasyTracker;
 import com.google.analytics.tracking.android.Tracker;
 
@@ -49,11 +53,16 @@ import java.util.List;
 import uk.co.senab.actionbarpulltorefresh.library.PullToRefreshAttacher;
 
 public class DashboardActivity extends SherlockFragmentActivity {
+    // Set when the applications list is a saved one, which should be retrieved again in the background
+    public static final String EXTRA_REVALIDATE_APPLICATIONS = "EXTRA_REVALIDATE_APPLICATIONS";
+
     private DrawerLayout mDrawerLayout;
     private ListView mDrawerAccountsList;
     private ListView mDrawerApplicationsList;
     private ActionBarDrawerToggle mDrawerToggle;
     private AppEngineDashboardClient mAppEngineClient;
+    private List<String> mApplications;
+    private ArrayAdapter<String> mApplicationsAdapter;
 
     private PullToRefreshAttacher mPullToRefreshAttacher;
 
@@ -75,7 +84,7 @@ public class DashboardActivity extends SherlockFragmentActivity {
         accountNames.add(defaultAccount.name);
 
         mAppEngineClient = AppEngineDashboardAPI.getInstance().getClient(defaultAccount);
-        List<String> applicationsList = mAppEngineClient.getLastRetrievedApplications();
+        mApplications = new ArrayList<String>(mAppEngineClient.getLastRetrievedApplications());
 
         initDrawerOnPhoneLayout();
 
@@ -91,8 +100,8 @@ public class DashboardActivity extends SherlockFragmentActivity {
         });
 
         mDrawerApplicationsList = (ListView) findViewById(R.id.drawer_applications);
-        mDrawerApplicationsList.setAdapter(
-                new ArrayAdapter<String>(this, R.layout.drawer_applications_list_item, applicationsList));
+        mApplicationsAdapter = new ArrayAdapter<String>(this, R.layout.drawer_applications_list_item, mApplications);
+        mDrawerApplicationsList.setAdapter(mApplicationsAdapter);
         mDrawerApplicationsList.setOnItemClickListener(new ListView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -111,7 +120,76 @@ public class DashboardActivity extends SherlockFragmentActivity {
 
         mPullToRefreshAttacher = new PullToRefreshAttacher(this);
 
+        if (savedInstanceState == null && getIntent().getBooleanExtra(EXTRA_REVALIDATE_APPLICATIONS, false))
+            revalidateApplications();
+
+        // Alarms don't survive a reboot, so the alert polling is rescheduled whenever the dashboard is opened
+        if (savedInstanceState == null)
+            AlertService.start(this);
+
         overridePendingTransition(R.anim.fade_in, R.anim.fade_out);
+        StartupTimings.mark(StartupTimings.STAGE_DASHBOARD_CREATED);
+    }
+
+    /**
+     * Retrieves the applications list again, and updates the drawer only if it has changed since it was saved.
+     */
+    private void revalidateApplications() {
+        mAppEngineClient.executeGetApplications(new AppEngineDashboardClient.PostExecuteCallback() {
+            @Override
+            public void onPostExecute(Bundle result) {
+                if (isFinishing())
+                    return;
+
+                if (!result.getBoolean(AppEngineDashboardClient.KEY_RESULT)) {
+                    // The session couldn't be refreshed without the user
+                    if (result.getBoolean(AppEngineDashboardClient.KEY_SESSION_EXPIRED)) {
+                        LogUtils.i("DashboardActivity", "Session refresh failed, logging in again");
+                        startLoginActivity(true);
+                        return;
+                    }
+
+                    LogUtils.e("DashboardActivity", "Revalidating the applications failed, keeping the saved list");
+                    return;
+                }
+
+                List<String> applications = result.getStringArrayList(AppEngineDashboardClient.KEY_APPLICATIONS);
+                if (applications.equals(mApplications)) {
+                    LogUtils.i("DashboardActivity", "The saved applications list is up to date");
+                    return;
+                }
+
+                Account account = mAppEngineClient.getAccount();
+                DashboardPreferences preferences = new DashboardPreferences(DashboardActivity.this);
+                if (applications.isEmpty()) {
+                    preferences.resetSavedApplications(account);
+                    startLoginActivity(true);
+                    return;
+                }
+
+                preferences.saveApplications(account, applications);
+                updateApplications(applications);
+            }
+        });
+    }
+
+    private void updateApplications(List<String> applications) {
+        LogUtils.i("DashboardActivity", "Applications list changed: " + applications);
+        String selectedApp = getNavigationListCheckedItem(mDrawerApplicationsList);
+
+        mApplicationsAdapter.setNotifyOnChange(false);
+        mApplicationsAdapter.clear();
+        mApplicationsAdapter.addAll(applications);
+        mApplicationsAdapter.notifyDataSetChanged();
+
+        // Keep showing the selected application's dashboard if it's still there
+        int selectedPosition = applications.indexOf(selectedApp);
+        if (selectedPosition != -1) {
+            mDrawerApplicationsList.setItemChecked(selectedPosition, true);
+        } else {
+            mDrawerApplicationsList.setItemChecked(0, true);
+            updateUIWithChosenParameters();
+        }
     }
 
     private void initDrawerOnPhoneLayout() {
@@ -151,6 +229,20 @@ public class DashboardActivity extends SherlockFragmentActivity {
         EasyTracker.getInstance().activityStop(this);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ChartCache.getInstance().onTrimMemory(level);
+        CompressedChartCache.getInstance().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ChartCache.getInstance().onLowMemory();
+        CompressedChartCache.getInstance().onLowMemory();
+    }
+
     PullToRefreshAttacher getPullToRefreshAttacher() {
         return mPullToRefreshAttacher;
     }
@@ -264,9 +356,15 @@ public class DashboardActivity extends SherlockFragmentActivity {
 
     private void logout() {
         new DashboardPreferences(this).resetSavedAccount();
+        mAppEngineClient.clearSession();
+
+        startLoginActivity(false);
+    }
 
+    private void startLoginActivity(boolean requireAuthentication) {
         Intent intent = new Intent(this, LoginActivity.class)
-                .addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK);
+                .addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK)
+                .putExtra(LoginActivity.EXTRA_REQUIRE_AUTHENTICATION, requireAuthentication);
         startActivity(intent);
     }
 
@@ -16,20 +16,20 @@ package com.friedran.appengine.dashboard.gui;
 import android.accounts.Account;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.support.v4.util.LruCache;
 import android.util.DisplayMetrics;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.AnimationUtils;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.BaseAdapter;
 import android.widget.GridView;
-import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -40,27 +40,75 @@ import com.actionbarsherlock.app.SherlockFragment;
 import com.friedran.appengine.dashboard.R;
 import com.friedran.appengine.dashboard.client.AppEngineDashboardAPI;
 import com.friedran.appengine.dashboard.client.AppEngineDashboardClient;
+import com.friedran.appengine.dashboard.client.ChartUrlBatch;
+import com.friedran.appengine.dashboard.client.RequestScheduler;
 import com.friedran.appengine.dashboard.utils.AnalyticsUtils;
+import com.friedran.appengine.dashboard.utils.ChartCache;
+import com.friedran.appengine.dashboard.utils.ChartData;
+import com.friedran.appengine.dashboard.utils.ChartDataCache;
+import com.friedran.appengine.dashboard.utils.ChartDataDecoder;
+import com.friedran.appengine.dashboard.utils.ChartStatistics;
+import com.friedran.appengine.dashboard.utils.ChartTimeWindows;
+import com.friedran.appengine.dashboard.utils.CompressedChartCache;
 import com.friedran.appengine.dashboard.utils.LogUtils;
+import com.friedran.appengine.dashboard.utils.StartupTimings;
+import com.friedran.appengine.dashboard.utils.TimeSeriesStore;
 import com.google.analytics.tracking.android.Tracker;
 
-import java.io.InputStream;
+import java.util.Arrays;
 
 import uk.co.senab.actionbarpulltorefresh.library.PullToRefreshAttacher;
 
 public class DashboardLoadFragment extends SherlockFragment implements AdapterView.OnItemSelectedListener, PullToRefreshAttacher.OnRefreshListener {
 
     public static final String CHART_URL_BACKGROUND_COLOR_SUFFIX = "&chf=bg,s,E8E8E8";
-    public static final int CHART_HEIGHT_PIXELS = 240;
-    public static final int CHART_MAX_WIDTH_PIXELS = 1000;
+
+    // Charts are requested in a few fixed sizes, the smallest that covers the grid cell, so a chart requested by
+    // slightly different layouts is still the same URL (and cache entry). Google's Chart API allows up to 1000px.
+    public static final int[] CHART_WIDTHS_PIXELS = {320, 480, 640, 800, 1000};
+    public static final int[] CHART_HEIGHTS_PIXELS = {160, 240, 300};
+
     public static final String KEY_ACCOUNT = "KEY_ACCOUNT";
     public static final String KEY_APPLICATION_ID = "KEY_APPLICATION_ID";
 
     private DashboardActivity mActivity;
+    private Account mAccount;
+    private AppEngineDashboardClient mAppEngineClient;
+    private String mApplicationID;
     private ChartAdapter mChartGridAdapter;
+    private GridView mChartsGridView;
     private PullToRefreshAttacher mPullToRefreshAttacher;
     private DisplayMetrics mDisplayMetrics;
-    private LruCache<String, Bitmap> mChartsMemoryCache;
+    // Decoded charts of every dashboard, this one's are under mChartsScopeID, backed by their compressed images.
+    // Charts that are drawn locally are cached as their data instead.
+    private ChartCache mChartCache;
+    private CompressedChartCache mCompressedChartCache;
+    private ChartDataCache mChartDataCache;
+    // The points of every chart drawn locally by metric, from which other time windows can be answered
+    private TimeSeriesStore mTimeSeriesStore;
+    private int mChartsScopeID;
+
+    // Downloads and decodes the chart images of the displayed time window
+    private ChartLoader mChartLoader;
+
+    // The chart URLs of the displayed time window, by metric ID, as they arrive from the current batch
+    private ChartUrlBatch mChartUrlBatch;
+    private SparseArray<String> mChartUrls = new SparseArray<String>();
+
+    // The metrics of the current batch whose charts haven't arrived (or failed) yet. The refresh is complete once
+    // every one of them has.
+    private SparseBooleanArray mPendingCharts = new SparseBooleanArray();
+
+    // A reload of charts that have been evicted from every cache is posted, see requestEvictedChart()
+    private boolean mReloadPosted;
+
+    // The metrics whose chart URL or download has failed in the displayed time window. They're only requested again
+    // by an explicit refresh or once the window changes, rather than whenever their views are rebound.
+    private SparseBooleanArray mFailedCharts = new SparseBooleanArray();
+
+    // The range of grid positions on screen, which determines the priority of each chart's requests
+    private int mFirstVisiblePosition;
+    private int mVisibleCount;
 
     private Tracker mTracker;
 
@@ -91,34 +139,42 @@ public class DashboardLoadFragment extends SherlockFragment implements AdapterVi
         mActivity.getWindowManager().getDefaultDisplay().getMetrics(mDisplayMetrics);
 
         Account account = getArguments().getParcelable(KEY_ACCOUNT);
-        String applicationID = getArguments().getString(KEY_APPLICATION_ID);
-        mChartGridAdapter = new ChartAdapter(mActivity, AppEngineDashboardAPI.getInstance().getClient(account), applicationID);
+        mAccount = account;
+        mApplicationID = getArguments().getString(KEY_APPLICATION_ID);
+        mAppEngineClient = AppEngineDashboardAPI.getInstance().getClient(account);
+        mChartGridAdapter = new ChartAdapter(mActivity);
 
         GridView chartsGridView = (GridView) layout.findViewById(R.id.load_charts_grid);
         chartsGridView.setAdapter(mChartGridAdapter);
-
-        mChartsMemoryCache = initChartsMemoryCache();
+        chartsGridView.setOnScrollListener(mChartsScrollListener);
+        mChartsGridView = chartsGridView;
+
+        mChartCache = ChartCache.getInstance();
+        mCompressedChartCache = CompressedChartCache.getInstance();
+        mChartDataCache = ChartDataCache.getInstance();
+        mTimeSeriesStore = TimeSeriesStore.getInstance();
+        mChartsScopeID = mChartCache.getScopeID(account.name, mApplicationID);
+        mChartCache.addBitmapsInUseChecker(mBitmapsInUseChecker);
+        mChartLoader = new ChartLoader(mActivity, mAppEngineClient.getRequestScheduler(), mChartsScopeID,
+                mChartLoaderListener);
 
         mTracker = AnalyticsUtils.getTracker(mActivity);
 
         mPullToRefreshAttacher = mActivity.getPullToRefreshAttacher();
         mPullToRefreshAttacher.setRefreshableView(chartsGridView, this);
 
+        loadCharts();
+
         return layout;
     }
 
-    private LruCache<String, Bitmap> initChartsMemoryCache() {
-        final int maxMemoryInKBs = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        final int cacheSize = maxMemoryInKBs / 5;
-
-        return new LruCache<String, Bitmap>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, Bitmap bitmap) {
-                // Measured in kilobytes
-                return bitmap.getByteCount() / 1024;
-            }
-        };
-    }
+    // Keeps the cache from reusing bitmaps that are still displayed. The cache is only changed on the UI thread.
+    private final ChartCache.BitmapsInUseChecker mBitmapsInUseChecker = new ChartCache.BitmapsInUseChecker() {
+        @Override
+        public boolean isInUse(Bitmap bitmap) {
+            return mChartGridAdapter.isDisplayingBitmap(bitmap);
+        }
+    };
 
     private Spinner setSpinnerWithItems(LinearLayout layout, int optionsListResourceID, int spinnerResourceID) {
         Spinner spinner = (Spinner) layout.findViewById(spinnerResourceID);
@@ -140,6 +196,20 @@ public class DashboardLoadFragment extends SherlockFragment implements AdapterVi
         super.onResume();
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+
+        // Switching to another application replaces this fragment, nothing it has requested is needed anymore
+        if (mChartUrlBatch != null)
+            mChartUrlBatch.cancel();
+        cancelChartDownloads();
+
+        // The charts stay cached for the next dashboard, but the views displaying them are gone
+        mChartCache.removeBitmapsInUseChecker(mBitmapsInUseChecker);
+        mChartGridAdapter.clearBoundChartViews();
+    }
+
     /**
      * Called when the time spinner is selected
      */
@@ -150,7 +220,9 @@ public class DashboardLoadFragment extends SherlockFragment implements AdapterVi
             AnalyticsUtils.sendEvent(mTracker, "ui_action", "spinner_click", "time_spinner_" + position, null);
 
             mDisplayedTimeID = position;
-            mChartGridAdapter.notifyDataSetChanged();
+            mFailedCharts.clear();
+            cancelChartDownloads();
+            loadCharts();
         }
     }
 
@@ -164,22 +236,205 @@ public class DashboardLoadFragment extends SherlockFragment implements AdapterVi
         refresh();
     }
 
+    /**
+     * Reloads only the charts that have expired, the longer the time window the longer its charts stay valid.
+     * The expired charts stay displayed until their replacements arrive.
+     */
     public void refresh() {
-        mChartsMemoryCache.evictAll();
+        mFailedCharts.clear();
+        loadCharts();
+    }
+
+    /**
+     * Requests the chart URLs of every metric of the displayed time window that isn't cached yet (or has expired),
+     * as a single batch. Expired charts are displayed meanwhile, and each is swapped in place once its new one is
+     * downloaded. Charts that have failed are skipped, see mFailedCharts.
+     */
+    private void loadCharts() {
+        mChartUrls.clear();
+        mPendingCharts.clear();
+
+        int metricsCount = mChartGridAdapter.getCount();
+        int[] missingMetricIDs = new int[metricsCount];
+        int[] priorities = new int[metricsCount];
+        int missingCount = 0;
+        for (int metricID = 0; metricID < metricsCount; metricID++) {
+            if (mFailedCharts.get(metricID))
+                continue;
+
+            if (!isChartFresh(metricID, mDisplayedTimeID) && !loadChartFromStore(metricID, mDisplayedTimeID)) {
+                priorities[missingCount] = getChartPriority(metricID);
+                missingMetricIDs[missingCount++] = metricID;
+                mPendingCharts.put(metricID, true);
+            }
+        }
+
+        // The new batch joins any request of the previous one that's still relevant before the rest is aborted
+        ChartUrlBatch previousBatch = mChartUrlBatch;
+        mChartUrlBatch = mAppEngineClient.executeGetChartUrls(mApplicationID, mDisplayedTimeID,
+                Arrays.copyOf(missingMetricIDs, missingCount), Arrays.copyOf(priorities, missingCount),
+                mChartUrlBatchCallback);
+        if (previousBatch != null)
+            previousBatch.cancel();
+
+        // Nothing has expired, so there's nothing to wait for
+        if (missingCount == 0)
+            mPullToRefreshAttacher.setRefreshComplete();
+
         mChartGridAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * Answers the chart from the points already fetched for the metric's other time windows, if they cover it.
+     * @return true if the chart has been answered, and is now cached
+     */
+    private boolean loadChartFromStore(int metricID, int windowID) {
+        long nowMillis = System.currentTimeMillis();
+        ChartData chartData = mTimeSeriesStore.query(TimeSeriesStore.getKey(mChartsScopeID, metricID), windowID,
+                nowMillis);
+        if (chartData == null)
+            return false;
+
+        // It expires along with the points it's made of. The store only checks when the covering chart was fetched,
+        // and its latest point may be older than that, so points that have expired by now aren't served at all.
+        long[] timestamps = chartData.getTimestamps();
+        long pointsAgeMillis = Math.max(0, nowMillis - timestamps[timestamps.length - 1]);
+        long timeToLiveMillis = ChartTimeWindows.getTimeToLiveMillis(windowID) - pointsAgeMillis;
+        if (timeToLiveMillis <= 0)
+            return false;
+
+        mChartDataCache.put(ChartCache.getKey(mChartsScopeID, metricID, windowID), chartData, timeToLiveMillis);
+        return true;
+    }
+
+    private final ChartUrlBatch.Callback mChartUrlBatchCallback = new ChartUrlBatch.Callback() {
+        @Override
+        public void onChartUrl(ChartUrlBatch batch, int metricID, Bundle result) {
+            // Results of a batch of a previously displayed window
+            if (batch != mChartUrlBatch)
+                return;
+
+            if (!result.getBoolean(AppEngineDashboardClient.KEY_RESULT)) {
+                LogUtils.e("DashboardLoadFragment", "GetChartURL has failed");
+                ChartViewHolder holder = mChartGridAdapter.getBoundChartView(metricID, batch.getChartWindowID());
+                if (holder != null)
+                    updateChartImage(holder, null, true);
+                mFailedCharts.put(metricID, true);
+                onChartCompleted(metricID);
+                AnalyticsUtils.sendEvent(mTracker, "ui_event", "get_chart_url_failed", "get_chart_url_failed", null);
+                return;
+            }
+
+            String chartUrl = result.getString(AppEngineDashboardClient.KEY_CHART_URL);
+            int windowID = batch.getChartWindowID();
+
+            // The URL already carries the chart's data, so the chart is drawn from it rather than downloaded
+            ChartData chartData = ChartDataDecoder.decode(chartUrl, System.currentTimeMillis(),
+                    ChartTimeWindows.getDurationMillis(windowID));
+            if (chartData != null) {
+                mChartDataCache.put(ChartCache.getKey(mChartsScopeID, metricID, windowID), chartData,
+                        ChartTimeWindows.getTimeToLiveMillis(windowID));
+                mTimeSeriesStore.merge(TimeSeriesStore.getKey(mChartsScopeID, metricID), windowID, chartData);
+
+                ChartViewHolder holder = mChartGridAdapter.getBoundChartView(metricID, windowID);
+                if (holder != null)
+                    updateChartData(holder, chartData, true);
+                onChartCompleted(metricID);
+                return;
+            }
+
+            // Otherwise its image is rendered by the Chart API
+            chartUrl = chartUrl.replaceAll("chs=\\d+x\\d+", String.format("chs=%sx%s",
+                    quantizeChartSize(getChartCellWidth(), CHART_WIDTHS_PIXELS),
+                    quantizeChartSize(getChartCellHeight(), CHART_HEIGHTS_PIXELS)));
+            chartUrl += CHART_URL_BACKGROUND_COLOR_SUFFIX;
+
+            mChartUrls.put(metricID, chartUrl);
+            executeDownloadChart(metricID, windowID, chartUrl);
+        }
+
+        @Override
+        public void onBatchCompleted(ChartUrlBatch batch, Bundle result) {
+            LogUtils.i("DashboardLoadFragment", "GetChartURLs batch completed, result = " +
+                    result.getBoolean(AppEngineDashboardClient.KEY_RESULT));
+        }
+    };
+
+    // Downloads the chart in the background, it's displayed by whichever view is bound to its metric by then
+    private void executeDownloadChart(int metricID, int windowID, String chartUrl) {
+        mChartLoader.download(metricID, windowID, chartUrl, getChartPriority(metricID), getChartCellWidth(),
+                getChartCellHeight());
+    }
+
+    /**
+     * Charts on screen are requested first, then the ones up to a screen away, and the rest are deferred.
+     */
+    private int getChartPriority(int metricID) {
+        int visibleCount = (mVisibleCount > 0) ? mVisibleCount : estimateVisibleCount();
+        int lastVisiblePosition = mFirstVisiblePosition + visibleCount - 1;
+
+        if (metricID >= mFirstVisiblePosition && metricID <= lastVisiblePosition)
+            return RequestScheduler.PRIORITY_VISIBLE;
+        if (metricID >= mFirstVisiblePosition - visibleCount && metricID <= lastVisiblePosition + visibleCount)
+            return RequestScheduler.PRIORITY_NEAR;
+        return RequestScheduler.PRIORITY_DEFERRED;
+    }
+
+    // Before the grid is laid out, assume a screenful of single-column rows
+    private int estimateVisibleCount() {
+        int rowHeight = getResources().getDimensionPixelSize(R.dimen.chart_height);
+        int columns = Math.max(1, mChartsGridView.getNumColumns());
+        return (mDisplayMetrics.heightPixels / rowHeight + 1) * columns;
+    }
+
+    private void updateChartPriorities() {
+        if (mChartUrlBatch != null && !mChartUrlBatch.isCompleted()) {
+            for (int metricID : mChartUrlBatch.getChartTypeIDs()) {
+                mChartUrlBatch.setPriority(metricID, getChartPriority(metricID));
+            }
+        }
+
+        for (int metricID = 0; metricID < mChartGridAdapter.getCount(); metricID++) {
+            mChartLoader.setDownloadPriority(metricID, getChartPriority(metricID));
+        }
+    }
+
+    private final AbsListView.OnScrollListener mChartsScrollListener = new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            // Do Nothing
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            if (firstVisibleItem == mFirstVisiblePosition && visibleItemCount == mVisibleCount)
+                return;
+
+            mFirstVisiblePosition = firstVisibleItem;
+            mVisibleCount = visibleItemCount;
+            updateChartPriorities();
+        }
+    };
+
+    // Drops every running chart download and decode, before it gets decoded if it hasn't already
+    private void cancelChartDownloads() {
+        mChartLoader.cancelAll();
+    }
+
     private class ChartAdapter extends BaseAdapter {
         private Context mContext;
-        private AppEngineDashboardClient mAppEngineClient;
-        private String mApplicationID;
         private String[] mAppEngineMetrics;
 
-        public ChartAdapter(Context c, AppEngineDashboardClient appEngineClient, String applicationID) {
+        private LayoutInflater mInflater;
+
+        // The holder of the view currently bound to each position
+        private SparseArray<ChartViewHolder> mBoundChartViews;
+
+        public ChartAdapter(Context c) {
             mContext = c;
-            mAppEngineClient = appEngineClient;
-            mApplicationID = applicationID;
             mAppEngineMetrics = getResources().getStringArray(R.array.load_metric_options);
+            mInflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            mBoundChartViews = new SparseArray<ChartViewHolder>();
         }
 
         // Disables highlighting items
@@ -211,117 +466,354 @@ public class DashboardLoadFragment extends SherlockFragment implements AdapterVi
             return position;
         }
 
+        /**
+         * @return The holder of the view bound to the given metric's chart of the given time window, or null if the
+         * view has since been recycled for another chart (or the chart isn't on screen at all)
+         */
+        public ChartViewHolder getBoundChartView(int metricID, int windowID) {
+            ChartViewHolder holder = mBoundChartViews.get(metricID);
+            if (holder == null || holder.mMetricID != metricID || holder.mWindowID != windowID)
+                return null;
+            return holder;
+        }
+
+        public void clearBoundChartViews() {
+            mBoundChartViews.clear();
+        }
+
+        public boolean isDisplayingBitmap(Bitmap bitmap) {
+            for (int i = 0; i < mBoundChartViews.size(); i++) {
+                if (mBoundChartViews.valueAt(i).mDisplayedBitmap == bitmap)
+                    return true;
+            }
+            return false;
+        }
+
         @Override
         public View getView(int position, View chartView, ViewGroup parent) {
-            LayoutInflater inflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            chartView = inflater.inflate(R.layout.load_charts_grid_item, null);
-
-            TextView textView = (TextView) chartView.findViewById(R.id.load_chart_title);
-            textView.setText(mAppEngineMetrics[position]);
+            ChartViewHolder holder;
+            if (chartView == null) {
+                chartView = mInflater.inflate(R.layout.load_charts_grid_item, parent, false);
+                holder = new ChartViewHolder(chartView);
+                chartView.setTag(holder);
+                chartView.setOnLongClickListener(mChartLongClickListener);
+            } else {
+                holder = (ChartViewHolder) chartView.getTag();
 
-            Bitmap chartImage = getChartImageFromCache(position, mDisplayedTimeID);
-            if (chartImage != null) {
-                LogUtils.i("DashboardLoadFragment", String.format("Updated chart from cache: %d, %d", position, mDisplayedTimeID));
-                updateChartImage(chartView, chartImage, false);
+                // The recycled view no longer shows its previous position
+                if (mBoundChartViews.get(holder.mMetricID) == holder)
+                    mBoundChartViews.remove(holder.mMetricID);
+            }
 
+            boolean rebound = holder.mMetricID != position || holder.mWindowID != mDisplayedTimeID;
+            holder.mMetricID = position;
+            holder.mWindowID = mDisplayedTimeID;
+            mBoundChartViews.put(position, holder);
+
+            if (rebound)
+                holder.mTitleView.setText(mAppEngineMetrics[position]);
+
+            // An expired chart is still displayed until its replacement arrives
+            ChartData chartData = getChartDataFromCache(position, mDisplayedTimeID);
+            Bitmap chartImage = (chartData == null) ? getChartImageFromCache(position, mDisplayedTimeID) : null;
+            if (chartData != null) {
+                updateChartData(holder, chartData, false);
+            } else if (chartImage != null) {
+                updateChartImage(holder, chartImage, false);
             } else {
-                // Load the image asynchronously, while displaying the progress animation
-                switchChartToProgress(chartView);
-                executeGetAndDisplayChart(chartView, mDisplayedTimeID, position);
+                // The chart is displayed once it's decoded from the compressed cache, or once its URL arrives
+                // from the batch and it's downloaded
+                switchChartToProgress(holder);
+                executeDecodeChart(position, mDisplayedTimeID);
             }
 
+            String chartUrl = mChartUrls.get(position);
+            if (chartUrl != null && !mFailedCharts.get(position) && !isChartFresh(position, mDisplayedTimeID))
+                executeDownloadChart(position, mDisplayedTimeID, chartUrl);
+
             return chartView;
         }
+    }
+
+    // A long press on a chart sets an alert on its metric
+    private final View.OnLongClickListener mChartLongClickListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View chartView) {
+            ChartViewHolder holder = (ChartViewHolder) chartView.getTag();
+            AnalyticsUtils.sendEvent(mTracker, "ui_action", "long_click", "alert_rule", null);
+            new AlertRuleDialog(mActivity, mAccount.name, mApplicationID, holder.mMetricID)
+                    .show((String) mChartGridAdapter.getItem(holder.mMetricID));
+            return true;
+        }
+    };
+
+    /**
+     * The child views of a chart grid item, and the chart (metric and time window) it's currently bound to.
+     * Results for any other chart are dropped, as the view has been recycled since they were requested.
+     */
+    private static class ChartViewHolder {
+        final TextView mTitleView;
+        final TextView mStatisticsView;
+        final ViewSwitcher mSwitcher;
+        final ChartView mChartView;
+
+        int mMetricID = -1;
+        int mWindowID = -1;
+        Bitmap mDisplayedBitmap;
+        ChartData mDisplayedData;
+
+        ChartViewHolder(View chartView) {
+            mTitleView = (TextView) chartView.findViewById(R.id.load_chart_title);
+            mStatisticsView = (TextView) chartView.findViewById(R.id.load_chart_statistics);
+            mSwitcher = (ViewSwitcher) chartView.findViewById(R.id.load_chart_switcher);
+            mChartView = (ChartView) chartView.findViewById(R.id.load_chart_view);
+        }
+    }
+
+    // Decodes a chart from the compressed cache in the background, when its decoded chart has been evicted
+    private void executeDecodeChart(int metricID, int windowID) {
+        if (!mChartLoader.decode(metricID, windowID, getChartCellWidth(), getChartCellHeight()))
+            requestEvictedChart(metricID, windowID);
+    }
 
-        // Gets and loads the chart into chartView asynchronously
-        private void executeGetAndDisplayChart(final View chartView, final int selectedTimeWindow, final int metricTypeID) {
-            mAppEngineClient.executeGetChartUrl(mApplicationID, metricTypeID, selectedTimeWindow,
-                    new AppEngineDashboardClient.PostExecuteCallback() {
-                        @Override
-                        public void onPostExecute(Bundle result) {
-                            if (!result.getBoolean(AppEngineDashboardClient.KEY_RESULT)) {
-                                LogUtils.e("DashboardLoadFragment", "GetChartURL has failed");
-                                updateChartImage(chartView, null, true);
-                                AnalyticsUtils.sendEvent(mTracker, "ui_event", "get_chart_url_failed", "get_chart_url_failed", null);
-                                return;
-                            }
+    private final ChartLoader.Listener mChartLoaderListener = new ChartLoader.Listener() {
+        @Override
+        public void onChartDownloaded(int metricID, int windowID, Bitmap chart) {
+            // The user has moved on to another time window meanwhile
+            if (windowID != mDisplayedTimeID)
+                return;
+
+            displayChartImage(metricID, windowID, chart);
+            if (chart == null)
+                mFailedCharts.put(metricID, true);
+            onChartCompleted(metricID);
+        }
 
-                            String chartUrl = result.getString(AppEngineDashboardClient.KEY_CHART_URL);
-                            chartUrl = chartUrl.replaceAll("chs=\\d+x\\d+",
-                                    String.format("chs=%sx%s", Math.min(mDisplayMetrics.widthPixels, CHART_MAX_WIDTH_PIXELS), CHART_HEIGHT_PIXELS));
-                            chartUrl += CHART_URL_BACKGROUND_COLOR_SUFFIX;
+        @Override
+        public void onChartDecoded(int metricID, int windowID, Bitmap chart) {
+            if (windowID == mDisplayedTimeID)
+                displayChartImage(metricID, windowID, chart);
+        }
 
-                            new ChartDownloadTask(mActivity, chartView, selectedTimeWindow, metricTypeID, chartUrl).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-                        }
-                    });
+        @Override
+        public void onChartDecodeFailed(int metricID, int windowID) {
+            requestEvictedChart(metricID, windowID);
         }
+    };
+
+    /**
+     * Gets a chart that's displayed with a progress bar, but has no decoded nor compressed copy to display - e.g. a
+     * chart that loadCharts() has found fresh, and that has been evicted from both caches since. It's answered from
+     * the store, or downloaded again, or else its URL is requested again by reloading the charts. A chart that has
+     * failed stays failed until the next refresh, rather than being requested (and failing again) on every rebind.
+     */
+    private void requestEvictedChart(int metricID, int windowID) {
+        // Already on its way, or failed
+        if (windowID != mDisplayedTimeID || mPendingCharts.get(metricID) || mChartLoader.isDownloading(metricID)
+                || mFailedCharts.get(metricID))
+            return;
+
+        if (loadChartFromStore(metricID, windowID)) {
+            ChartViewHolder holder = mChartGridAdapter.getBoundChartView(metricID, windowID);
+            ChartData chartData = getChartDataFromCache(metricID, windowID);
+            if (holder != null && chartData != null)
+                updateChartData(holder, chartData, true);
+            return;
+        }
+
+        String chartUrl = mChartUrls.get(metricID);
+        if (chartUrl != null) {
+            executeDownloadChart(metricID, windowID, chartUrl);
+            return;
+        }
+
+        // Posted, since this may be called while the grid is laid out, and every evicted chart is reloaded at once
+        if (mReloadPosted || getView() == null)
+            return;
+        mReloadPosted = true;
+        getView().post(new Runnable() {
+            @Override
+            public void run() {
+                mReloadPosted = false;
+                if (isAdded())
+                    loadCharts();
+            }
+        });
     }
 
-    /** Downloads a chart image and displays it asynchronously */
-    private class ChartDownloadTask extends AsyncTask<String, Void, Bitmap> {
-        Context mContext;
-        View mChartView;
+    /** Computes the statistics of a drawn chart in the background, and displays them if it's still displayed */
+    private class ChartStatisticsTask extends AsyncTask<Void, Void, ChartStatistics> {
         int mTimeWindowID;
         int mMetricTypeID;
-        String mUrl;
+        ChartData mChartData;
 
-        public ChartDownloadTask(Context context, View chartView, int timeWindowID, int metricTypeID, String url) {
-            mContext = context;
-            mChartView = chartView;
+        public ChartStatisticsTask(int timeWindowID, int metricTypeID, ChartData chartData) {
             mTimeWindowID = timeWindowID;
             mMetricTypeID = metricTypeID;
-            mUrl = url;
+            mChartData = chartData;
         }
 
         @Override
-        protected Bitmap doInBackground(String... params) {
-            Bitmap decodedBitmap = null;
+        protected ChartStatistics doInBackground(Void... params) {
+            // Memoized by the chart, so it's only computed once however many times the chart is bound
+            return mChartData.getStatistics();
+        }
 
-            try {
-                LogUtils.i("DashboardLoadFragment", String.format("Downloading chart (%s, %s) from: %s", mTimeWindowID, mMetricTypeID, mUrl));
-                InputStream in = new java.net.URL(mUrl).openStream();
-                decodedBitmap = BitmapFactory.decodeStream(in);
-                updateChartImageInCache(mMetricTypeID, mTimeWindowID, decodedBitmap);
+        @Override
+        protected void onPostExecute(ChartStatistics result) {
+            ChartViewHolder holder = mChartGridAdapter.getBoundChartView(mMetricTypeID, mTimeWindowID);
+            if (holder != null && holder.mDisplayedData == mChartData)
+                updateChartStatistics(holder, result);
+        }
+    }
 
-            } catch (Exception e) {
-                LogUtils.e("DashboardLoadFragment", e.getMessage(), e);
-            }
+    // Completes the refresh once the last chart of the batch has arrived or failed
+    private void onChartCompleted(int metricID) {
+        if (!mPendingCharts.get(metricID))
+            return;
 
-            return decodedBitmap;
+        mPendingCharts.delete(metricID);
+        if (mPendingCharts.size() == 0)
+            mPullToRefreshAttacher.setRefreshComplete();
+    }
+
+    /**
+     * The width of a grid cell in pixels. Before the grid is laid out, it's estimated as the grid would fit columns
+     * of the minimal width into the whole display.
+     */
+    private int getChartCellWidth() {
+        int spacing = getResources().getDimensionPixelSize(R.dimen.chart_grid_spacing);
+        int gridWidth = mChartsGridView.getWidth();
+        int columns = mChartsGridView.getNumColumns();
+
+        if (gridWidth == 0 || columns <= 0) {
+            int columnWidth = getResources().getDimensionPixelSize(R.dimen.chart_column_width);
+            gridWidth = mDisplayMetrics.widthPixels;
+            columns = Math.max(1, (gridWidth + spacing) / (columnWidth + spacing));
         }
 
-        @Override
-        protected void onPostExecute(Bitmap result) {
-            updateChartImage(mChartView, result, true);
+        return (gridWidth - (columns - 1) * spacing) / columns;
+    }
+
+    private int getChartCellHeight() {
+        return getResources().getDimensionPixelSize(R.dimen.chart_height);
+    }
+
+    /** The smallest of the given sizes that's at least the requested one, or the largest if none is */
+    private static int quantizeChartSize(int requestedSize, int[] sizes) {
+        for (int size : sizes) {
+            if (size >= requestedSize)
+                return size;
         }
+        return sizes[sizes.length - 1];
     }
 
     private Bitmap getChartImageFromCache(int metricID, int windowID) {
-        return mChartsMemoryCache.get(String.format("%s.%s", metricID, windowID));
+        return mChartCache.getStale(ChartCache.getKey(mChartsScopeID, metricID, windowID));
     }
 
-    private void updateChartImageInCache(int metricID, int windowID, Bitmap image) {
-        mChartsMemoryCache.put(String.format("%s.%s", metricID, windowID), image);
+    private ChartData getChartDataFromCache(int metricID, int windowID) {
+        return mChartDataCache.getStale(ChartCache.getKey(mChartsScopeID, metricID, windowID));
     }
 
-    private void switchChartToProgress(View chartView) {
-        ViewSwitcher switcher = (ViewSwitcher) chartView.findViewById(R.id.load_chart_switcher);
-        if (switcher.getDisplayedChild() != 0) {
-            switcher.showPrevious();
+    // Either tier is enough, a chart that's only compressed is decoded rather than downloaded again
+    private boolean isChartFresh(int metricID, int windowID) {
+        long chartKey = ChartCache.getKey(mChartsScopeID, metricID, windowID);
+        return mChartDataCache.isFresh(chartKey) || mChartCache.isFresh(chartKey)
+                || mCompressedChartCache.isFresh(chartKey);
+    }
+
+    private void switchChartToProgress(ChartViewHolder holder) {
+        // Released, so the bitmap can be reused once it leaves the cache
+        holder.mChartView.clear();
+        holder.mDisplayedBitmap = null;
+        holder.mDisplayedData = null;
+        updateChartStatistics(holder, null);
+
+        if (holder.mSwitcher.getDisplayedChild() != 0) {
+            holder.mSwitcher.showPrevious();
         }
     }
 
-    private void updateChartImage(View chartView, Bitmap image, boolean animate) {
-        ImageView chartImageView = (ImageView) chartView.findViewById(R.id.load_chart_image);
+    private void updateChartData(ChartViewHolder holder, ChartData data, boolean animate) {
+        holder.mChartView.setChartData(data);
+        holder.mDisplayedBitmap = null;
 
+        if (holder.mDisplayedData != data) {
+            holder.mDisplayedData = data;
+            if (data.hasStatistics()) {
+                updateChartStatistics(holder, data.getStatistics());
+            } else {
+                updateChartStatistics(holder, null);
+                new ChartStatisticsTask(holder.mWindowID, holder.mMetricID, data)
+                        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+        }
+
+        showChart(holder, animate);
+    }
+
+    // Displays a loaded chart if its view is still bound to it
+    private void displayChartImage(int metricID, int windowID, Bitmap image) {
+        ChartViewHolder holder = mChartGridAdapter.getBoundChartView(metricID, windowID);
+        if (holder != null)
+            updateChartImage(holder, image, true);
+    }
+
+    private void updateChartImage(ChartViewHolder holder, Bitmap image, boolean animate) {
         if (image != null) {
-            chartImageView.setImageBitmap(image);
+            if (holder.mDisplayedBitmap != image)
+                holder.mChartView.setChartBitmap(image);
+            holder.mDisplayedBitmap = image;
+
+            // A rendered image carries no values to summarize
+            holder.mDisplayedData = null;
+            updateChartStatistics(holder, null);
         } else {
-            chartImageView.setImageResource(android.R.color.transparent);
+            // A failed refresh keeps the expired chart, if there's one
             Toast.makeText(mActivity, "Failed downloading charts, please make sure you have Internet connectivity and try refreshing", 2000).show();
         }
 
-        ViewSwitcher viewSwitcher = (ViewSwitcher) chartView.findViewById(R.id.load_chart_switcher);
+        showChart(holder, animate);
+    }
+
+    // The line is kept empty rather than hidden, so the grid's cells stay aligned
+    private void updateChartStatistics(ChartViewHolder holder, ChartStatistics statistics) {
+        if (statistics == null) {
+            holder.mStatisticsView.setText("");
+            return;
+        }
+
+        holder.mStatisticsView.setText(getString(R.string.load_chart_statistics,
+                formatStatistic(statistics.getMin()), formatStatistic(statistics.getMean()),
+                formatStatistic(statistics.getMax()), formatStatistic(statistics.getPercentile95()),
+                formatStatistic(statistics.getLast())));
+    }
+
+    // Compact, so all five of them fit on the line under the title
+    private static String formatStatistic(float value) {
+        float magnitude = Math.abs(value);
+        if (magnitude >= 1000000)
+            return String.format("%.1fM", value / 1000000);
+        if (magnitude >= 1000)
+            return String.format("%.1fk", value / 1000);
+        if (magnitude >= 100 || magnitude == 0)
+            return String.format("%.0f", value);
+        if (magnitude >= 10)
+            return String.format("%.1f", value);
+        if (magnitude >= 1)
+            return String.format("%.2f", value);
+        return String.format("%.3g", value);
+    }
+
+    private void showChart(ChartViewHolder holder, boolean animate) {
+        if (holder.mChartView.hasChart()) {
+            // Ends the startup measurement, if it's still going on
+            StartupTimings.mark(StartupTimings.STAGE_FIRST_CHART);
+            StartupTimings.finish(mTracker);
+        }
+
+        ViewSwitcher viewSwitcher = holder.mSwitcher;
         if (viewSwitcher.getDisplayedChild() != 1) {
             if (animate) {
                 viewSwitcher.setAnimation(AnimationUtils.loadAnimation(mActivity, R.anim.fadein));
@@ -330,8 +822,5 @@ public class DashboardLoadFragment extends SherlockFragment implements AdapterVi
                 viewSwitcher.setAnimation(null);
             viewSwitcher.showNext();
         }
-
-        // Mark the refresh UI as complete once anyone of the charts has been loaded.
-        mPullToRefreshAttacher.setRefreshComplete();
     }
 }
@@ -34,6 +34,7 @@ import com.friedran.appengine.dashboard.client.AppEngineDashboardClient;
 import com.friedran.appengine.dashboard.utils.AnalyticsUtils;
 import com.friedran.appengine.dashboard.utils.DashboardPreferences;
 import com.friedran.appengine.dashboard.utils.LogUtils;
+import com.friedran.appengine.dashboard.utils.StartupTimings;
 import com.google.analytics.tracking.android.EasyTracker;
 import com.google.analytics.tracking.android.Tracker;
 
@@ -47,6 +48,9 @@ public class LoginActivity extends Activity implements View.OnClickListener,
 
     public static final String EXTRA_ACCOUNT = "EXTRA_ACCOUNT";
 
+    // Set when the stored session and applications can't be used, and a full login is required
+    public static final String EXTRA_REQUIRE_AUTHENTICATION = "EXTRA_REQUIRE_AUTHENTICATION";
+
     protected LinearLayout mEnterAccountLayout;
     protected Spinner mAccountSpinner;
     protected Button mLoginButton;
@@ -62,11 +66,24 @@ public class LoginActivity extends Activity implements View.OnClickListener,
     protected boolean mLoginInProgress;
     protected boolean mHasRequestedUserInput;
     protected boolean mHasFailedAuthentication;
+    protected boolean mIsResumingSession;
+    protected boolean mRequireAuthentication;
 
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTimings.start();
+
+        // The token fetch and the connection to AppEngine proceed while the UI is inflated
+        mPreferences = new DashboardPreferences(this);
+        mSavedAccount = mPreferences.getSavedAccount();
+        if (mSavedAccount != null) {
+            createClient(mSavedAccount);
+            mAppEngineClient.prewarm();
+        }
+
         AnalyticsUtils.initBugSense(this);
         setContentView(R.layout.login);
+        StartupTimings.mark(StartupTimings.STAGE_LOGIN_UI_INFLATED);
 
         mEnterAccountLayout = (LinearLayout) findViewById(R.id.login_enter_account_layout);
 
@@ -78,13 +95,10 @@ public class LoginActivity extends Activity implements View.OnClickListener,
         mProgressDialog = new ProgressDialog(this);
         mProgressDialog.setTitle("Loading");
 
-        mPreferences = new DashboardPreferences(this);
-
-        mSavedAccount = mPreferences.getSavedAccount();
-
         mLoginInProgress = false;
         mHasRequestedUserInput = false;
         mHasFailedAuthentication = false;
+        mRequireAuthentication = getIntent().getBooleanExtra(EXTRA_REQUIRE_AUTHENTICATION, false);
 
         mTracker = AnalyticsUtils.getTracker(this);
 
@@ -164,15 +178,44 @@ public class LoginActivity extends Activity implements View.OnClickListener,
         startAuthentication(selectedAccount);
     }
 
-    private void startAuthentication(Account selectedAccount) {
-        mAppEngineClient = new AppEngineDashboardClient(selectedAccount, this, this, this);
+    private void createClient(Account account) {
+        mAppEngineClient = new AppEngineDashboardClient(account, this, this, this);
 
         AppEngineDashboardAPI appEngineAPI = AppEngineDashboardAPI.getInstance();
-        appEngineAPI.setClient(selectedAccount, mAppEngineClient);
+        appEngineAPI.setClient(account, mAppEngineClient);
+    }
+
+    private void startAuthentication(Account selectedAccount) {
+        // The client may have already been created and pre-warmed for the saved account
+        if (mAppEngineClient == null || !mAppEngineClient.getAccount().equals(selectedAccount))
+            createClient(selectedAccount);
 
-        showProgressDialog("Authenticating with Google AppEngine...");
         mLoginInProgress = true;
         mHasFailedAuthentication = false;
+
+        // With the applications list of the last run the dashboard is shown right away, it revalidates the list
+        // (and the session) in the background
+        List<String> savedApplications = mPreferences.getSavedApplications(selectedAccount);
+        if (!mRequireAuthentication && savedApplications != null && !savedApplications.isEmpty()) {
+            LogUtils.i("LoginActivity", "Starting with the saved applications of " + selectedAccount.name);
+            AnalyticsUtils.sendEvent(mTracker, "ui_event", "auth", "saved_applications_used", null);
+            mAppEngineClient.setLastRetrievedApplications(savedApplications);
+            mAppEngineClient.refreshSessionIfRequired();
+            dismissProgress(true);
+            onSuccessfulLogin(selectedAccount, true);
+            return;
+        }
+
+        // A session cookie from the last run is tried as is, the token flow is only required if it gets rejected
+        mIsResumingSession = !mRequireAuthentication && mAppEngineClient.hasValidSession();
+        if (mIsResumingSession) {
+            LogUtils.i("LoginActivity", "Resuming the stored session of " + selectedAccount.name);
+            AnalyticsUtils.sendEvent(mTracker, "ui_event", "auth", "session_resumed", null);
+            onSuccessfulAuthentication();
+            return;
+        }
+
+        showProgressDialog("Authenticating with Google AppEngine...");
         mAppEngineClient.executeAuthentication();
     }
 
@@ -231,8 +274,19 @@ public class LoginActivity extends Activity implements View.OnClickListener,
             public void onPostExecute(Bundle resultBundle) {
                 boolean result = resultBundle.getBoolean(AppEngineDashboardClient.KEY_RESULT);
                 LogUtils.i("LoginActivity", "GetApplications done, result = " + result);
+                StartupTimings.mark(StartupTimings.STAGE_APPLICATIONS);
                 Account targetAccount = mAppEngineClient.getAccount();
 
+                if (!result && mIsResumingSession &&
+                        resultBundle.getBoolean(AppEngineDashboardClient.KEY_SESSION_EXPIRED)) {
+                    LogUtils.i("LoginActivity", "The stored session was rejected, authenticating...");
+                    mIsResumingSession = false;
+                    mAppEngineClient.clearSession();
+                    showProgressDialog("Authenticating with Google AppEngine...");
+                    mAppEngineClient.executeAuthentication();
+                    return;
+                }
+
                 if (!result) {
                     onFailedLogin("Failed retrieving list of applications for " + targetAccount.name);
                     AnalyticsUtils.sendEvent(mTracker, "ui_event", "auth_error", "get_applications_failed", null);
@@ -245,7 +299,9 @@ public class LoginActivity extends Activity implements View.OnClickListener,
                     return;
                 }
 
-                onSuccessfulLogin(targetAccount);
+                mPreferences.saveApplications(targetAccount,
+                        resultBundle.getStringArrayList(AppEngineDashboardClient.KEY_APPLICATIONS));
+                onSuccessfulLogin(targetAccount, false);
                 dismissProgress(true);
             }
         });
@@ -253,11 +309,12 @@ public class LoginActivity extends Activity implements View.OnClickListener,
 
     private void onFailedLogin(String message) {
         dismissProgress(true);
+        mAppEngineClient.clearSession();
         resetSavedAccount();
         Toast.makeText(LoginActivity.this, message, 5000).show();
     }
 
-    private void onSuccessfulLogin(Account account) {
+    private void onSuccessfulLogin(Account account, boolean usingSavedApplications) {
         AnalyticsUtils.sendEvent(mTracker, "ui_event", "auth", "auth_successful", null);
 
         // Updates the saved account if required
@@ -269,7 +326,8 @@ public class LoginActivity extends Activity implements View.OnClickListener,
         overridePendingTransition(R.anim.fade_in, R.anim.fade_out);
         Intent intent = new Intent(this, DashboardActivity.class)
                 .addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK)
-                .putExtra(LoginActivity.EXTRA_ACCOUNT, account);
+                .putExtra(LoginActivity.EXTRA_ACCOUNT, account)
+                .putExtra(DashboardActivity.EXTRA_REVALIDATE_APPLICATIONS, usingSavedApplications);
         startActivity(intent);
     }
 
@@ -13,32 +13,156 @@
  */
 package com.friedran.appengine.dashboard.utils;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Scanner;
-import java.util.regex.Pattern;
 
 /**
  * Some utility methods to parse AppEngine data and returns various details from it.
  */
 public class AppEngineParserUtils {
-    private static final Pattern APPLICATIONS_PATTERN = Pattern.compile("<a\\s+([^>]*\\s+)?href=\"/dashboard\\?\\&app_id=s\\~([^>\"]+)\"");
+    private static final byte[] APPLICATION_HREF_PREFIX = getAsciiBytes("href=\"/dashboard?&app_id=s~");
+
+    // AppEngine application IDs are up to 30 characters, with an optional "domain:" prefix
+    private static final int MAX_APPLICATION_ID_LENGTH = 256;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    // States of the applications page scanner
+    private static final int STATE_TEXT = 0;
+    private static final int STATE_TAG_OPENED = 1;
+    private static final int STATE_ANCHOR_NAME = 2;
+    private static final int STATE_ANCHOR_ATTRIBUTES = 3;
 
-    public static ArrayList<String> getApplicationIDs(InputStream in) {
-        return getMatches(in, APPLICATIONS_PATTERN);
+    private static byte[] getAsciiBytes(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) s.charAt(i);
+        return bytes;
     }
 
-    private static ArrayList<String> getMatches(InputStream in, Pattern pattern) {
-        ArrayList<String> matches = new ArrayList<String>();
-        Scanner scanner = new Scanner(in, "UTF-8");
-        String match = "";
-        while (match != null) {
-            match = scanner.findWithinHorizon(pattern, 0);
-            if (match != null) {
-                matches.add(scanner.match().group(2));
+    /**
+     * Reads the chart_url field of a GetChart (/dashboard/stats) JSON response, stopping as soon as it's found.
+     * The stream isn't closed, the caller is responsible for consuming its remainder.
+     */
+    public static String getChartUrl(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("chart_url") && reader.peek() == JsonToken.STRING)
+                return reader.nextString();
+
+            reader.skipValue();
+        }
+
+        throw new IOException("No chart_url found in the GetChart response");
+    }
+
+    /**
+     * Finds the IDs of the applications linked from the AppEngine applications page, i.e. the
+     * href="/dashboard?&amp;app_id=s~APP_ID" attribute of every &lt;a&gt; tag.
+     *
+     * The page is scanned in a single pass over the byte stream, keeping nothing but the ID being read.
+     */
+    public static ArrayList<String> getApplicationIDs(InputStream in) throws IOException {
+        ArrayList<String> applicationIDs = new ArrayList<String>();
+        InputStream bufferedIn = new BufferedInputStream(in, READ_BUFFER_SIZE);
+
+        // The ID being read, and the last complete one found in the current tag
+        byte[] idBuffer = new byte[MAX_APPLICATION_ID_LENGTH];
+        int idLength = -1;
+        byte[] foundIdBuffer = new byte[MAX_APPLICATION_ID_LENGTH];
+        int foundIdLength = 0;
+
+        int state = STATE_TEXT;
+        int hrefMatched = 0;
+        boolean afterWhitespace = false;
+
+        int b;
+        while ((b = bufferedIn.read()) != -1) {
+            switch (state) {
+                case STATE_TEXT:
+                    if (b == '<')
+                        state = STATE_TAG_OPENED;
+                    break;
+
+                case STATE_TAG_OPENED:
+                    state = (b == 'a') ? STATE_ANCHOR_NAME : ((b == '<') ? STATE_TAG_OPENED : STATE_TEXT);
+                    break;
+
+                case STATE_ANCHOR_NAME:
+                    if (isWhitespace(b)) {
+                        state = STATE_ANCHOR_ATTRIBUTES;
+                        afterWhitespace = true;
+                        hrefMatched = 0;
+                        idLength = -1;
+                        foundIdLength = 0;
+                    } else {
+                        state = (b == '<') ? STATE_TAG_OPENED : STATE_TEXT;
+                    }
+                    break;
+
+                case STATE_ANCHOR_ATTRIBUTES:
+                    if (b == '>') {
+                        addApplicationID(applicationIDs, foundIdBuffer, foundIdLength);
+                        state = STATE_TEXT;
+                        break;
+                    }
+
+                    // Reading an ID
+                    if (idLength >= 0) {
+                        if (b == '"') {
+                            // Like the last matching href in the tag, the last complete ID is the one used
+                            if (idLength > 0) {
+                                System.arraycopy(idBuffer, 0, foundIdBuffer, 0, idLength);
+                                foundIdLength = idLength;
+                            }
+                            idLength = -1;
+                        } else if (idLength == MAX_APPLICATION_ID_LENGTH) {
+                            idLength = -1;
+                        } else {
+                            idBuffer[idLength++] = (byte) b;
+                        }
+                    }
+
+                    // Matching the href prefix, which has to follow whitespace
+                    if (hrefMatched > 0 || afterWhitespace) {
+                        if (b == APPLICATION_HREF_PREFIX[hrefMatched]) {
+                            hrefMatched++;
+                            if (hrefMatched == APPLICATION_HREF_PREFIX.length) {
+                                hrefMatched = 0;
+                                idLength = 0;
+                            }
+                        } else {
+                            // The prefix has no whitespace, so a mismatch can only restart after whitespace
+                            hrefMatched = 0;
+                        }
+                    }
+                    afterWhitespace = isWhitespace(b);
+                    break;
             }
         }
 
-        return matches;
+        // An unterminated last tag
+        if (state == STATE_ANCHOR_ATTRIBUTES)
+            addApplicationID(applicationIDs, foundIdBuffer, foundIdLength);
+
+        return applicationIDs;
+    }
+
+    private static void addApplicationID(ArrayList<String> applicationIDs, byte[] idBuffer, int idLength)
+            throws IOException {
+        if (idLength > 0)
+            applicationIDs.add(new String(idBuffer, 0, idLength, "UTF-8"));
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps bitmaps that are no longer displayed, so the next decode of the same dimensions can reuse their memory
+ * (BitmapFactory.Options.inBitmap) instead of allocating a new bitmap.
+ *
+ * Only mutable bitmaps can be reused. The pool is limited by the total size of its bitmaps, the oldest ones
+ * of the most crowded dimensions are dropped first. All the methods are thread-safe.
+ */
+public class BitmapPool {
+    private final long mMaxSizeBytes;
+    private final Map<String, ArrayDeque<Bitmap>> mBitmaps = new HashMap<String, ArrayDeque<Bitmap>>();
+    private long mSizeBytes;
+
+    // Counted for the log, to see how often decodes avoid allocating
+    private int mHitsCount;
+    private int mMissesCount;
+
+    public BitmapPool(long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @return A pooled bitmap of exactly the given dimensions and config, which is removed from the pool, or null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(getKey(width, height, config));
+        Bitmap bitmap = (bitmaps != null) ? bitmaps.pollLast() : null;
+
+        if (bitmap == null) {
+            mMissesCount++;
+            return null;
+        }
+
+        mHitsCount++;
+        mSizeBytes -= bitmap.getByteCount();
+        LogUtils.d("BitmapPool", String.format("Reused a %dx%d bitmap, %d hits / %d misses",
+                width, height, mHitsCount, mMissesCount));
+        return bitmap;
+    }
+
+    /**
+     * Adds a bitmap that's no longer displayed or referenced by any cache. Immutable bitmaps are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled() || bitmap.getByteCount() > mMaxSizeBytes)
+            return;
+
+        String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<Bitmap>();
+            mBitmaps.put(key, bitmaps);
+        }
+
+        bitmaps.addLast(bitmap);
+        mSizeBytes += bitmap.getByteCount();
+        trimToSize();
+    }
+
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mSizeBytes = 0;
+    }
+
+    private void trimToSize() {
+        while (mSizeBytes > mMaxSizeBytes) {
+            ArrayDeque<Bitmap> largestBitmaps = null;
+            for (ArrayDeque<Bitmap> bitmaps : mBitmaps.values()) {
+                if (largestBitmaps == null || bitmaps.size() > largestBitmaps.size())
+                    largestBitmaps = bitmaps;
+            }
+
+            if (largestBitmaps == null || largestBitmaps.isEmpty())
+                return;
+
+            // Not recycled explicitly, nothing else references it so the GC would take care of it
+            mSizeBytes -= largestBitmaps.pollFirst().getByteCount();
+        }
+    }
+
+    private static String getKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+}
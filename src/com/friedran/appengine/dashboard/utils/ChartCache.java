@@ -0,0 +1,271 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * The process-wide cache of decoded charts, shared by every dashboard so switching between applications keeps
+ * their charts. Limited by the total byte size of its bitmaps, evicted by least recent use, and each chart expires
+ * after a time-to-live given when it's put.
+ *
+ * A chart is keyed by its (account, application, metric, time window), packed into a long: the account and
+ * application are interned once into a scope ID with {@link #getScopeID}, so lookups allocate nothing. The entries
+ * are kept in a {@link LongLruMap}, shared with the other chart caches.
+ *
+ * Charts evicted from here are usually still in the CompressedChartCache, which is much cheaper to decode from than
+ * to download again.
+ *
+ * Bitmaps leaving the cache are passed to its BitmapPool, unless one of the registered {@link BitmapsInUseChecker}s
+ * (one per displaying fragment) reports they're still displayed. The checkers are called after the cache's lock is
+ * released, on the thread that changed the cache.
+ */
+public class ChartCache {
+    private static final int MAX_ENTRIES = 1024;
+
+    private static ChartCache sInstance;
+
+    public interface BitmapsInUseChecker {
+        public boolean isInUse(Bitmap bitmap);
+    }
+
+    private final long mMaxSizeBytes;
+    private final LongLruMap<Bitmap> mEntries = new LongLruMap<Bitmap>(MAX_ENTRIES);
+
+    private final Map<String, Integer> mScopeIDs = new HashMap<String, Integer>();
+    private final BitmapPool mBitmapPool;
+    private final Set<BitmapsInUseChecker> mBitmapsInUseCheckers = new CopyOnWriteArraySet<BitmapsInUseChecker>();
+
+    // Bitmaps that have left the cache, to be released once its lock is
+    private final List<Bitmap> mRemovedBitmaps = new ArrayList<Bitmap>();
+
+    public static synchronized ChartCache getInstance() {
+        if (sInstance == null) {
+            long maxMemory = Runtime.getRuntime().maxMemory();
+            // Decoded charts are only kept for the recently displayed ones, the rest are kept compressed
+            sInstance = new ChartCache(maxMemory / 8, new BitmapPool(maxMemory / 16));
+        }
+        return sInstance;
+    }
+
+    ChartCache(long maxSizeBytes, BitmapPool bitmapPool) {
+        mMaxSizeBytes = maxSizeBytes;
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * @return A small ID identifying the given account's application, the same one for every call
+     */
+    public synchronized int getScopeID(String accountName, String applicationID) {
+        String scope = accountName + "/" + applicationID;
+        Integer scopeID = mScopeIDs.get(scope);
+        if (scopeID == null) {
+            scopeID = mScopeIDs.size();
+            mScopeIDs.put(scope, scopeID);
+        }
+        return scopeID;
+    }
+
+    public static long getKey(int scopeID, int metricID, int windowID) {
+        return ((long) scopeID << 32) | ((long) (metricID & 0xffff) << 16) | (windowID & 0xffff);
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Adds a checker consulted before a bitmap leaving the cache is reused, along with those already added.
+     */
+    public void addBitmapsInUseChecker(BitmapsInUseChecker checker) {
+        mBitmapsInUseCheckers.add(checker);
+    }
+
+    public void removeBitmapsInUseChecker(BitmapsInUseChecker checker) {
+        mBitmapsInUseCheckers.remove(checker);
+    }
+
+    /**
+     * @return The cached chart, or null if it's missing or has expired
+     */
+    public Bitmap get(long key) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            int entry = mEntries.find(key);
+            if (entry != LongLruMap.NO_ENTRY) {
+                if (mEntries.getExpirationTime(entry) <= SystemClock.elapsedRealtime()) {
+                    removeLocked(key);
+                } else {
+                    mEntries.touch(entry);
+                    bitmap = mEntries.getValue(entry);
+                }
+            }
+        }
+
+        releaseRemovedBitmaps();
+        return bitmap;
+    }
+
+    /**
+     * @return The cached chart even if it has expired (so it can be displayed until it's replaced), or null
+     */
+    public synchronized Bitmap getStale(long key) {
+        int entry = mEntries.find(key);
+        if (entry == LongLruMap.NO_ENTRY)
+            return null;
+
+        mEntries.touch(entry);
+        return mEntries.getValue(entry);
+    }
+
+    /**
+     * @return true if the chart is cached and hasn't expired yet
+     */
+    public synchronized boolean isFresh(long key) {
+        int entry = mEntries.find(key);
+        return entry != LongLruMap.NO_ENTRY && mEntries.getExpirationTime(entry) > SystemClock.elapsedRealtime();
+    }
+
+    public void put(long key, Bitmap bitmap, long timeToLiveMillis) {
+        synchronized (this) {
+            putLocked(key, bitmap, timeToLiveMillis);
+        }
+        releaseRemovedBitmaps();
+    }
+
+    private void putLocked(long key, Bitmap bitmap, long timeToLiveMillis) {
+        int size = bitmap.getByteCount();
+        if (size > mMaxSizeBytes) {
+            removeLocked(key);
+            return;
+        }
+
+        if (mEntries.find(key) == LongLruMap.NO_ENTRY && mEntries.isFull())
+            removeLocked(mEntries.getKey(mEntries.getEldest()));
+
+        Bitmap previousBitmap = mEntries.put(key, bitmap, size, SystemClock.elapsedRealtime() + timeToLiveMillis);
+        if (previousBitmap != null && previousBitmap != bitmap)
+            mRemovedBitmaps.add(previousBitmap);
+
+        trimToSizeLocked(mMaxSizeBytes);
+    }
+
+    public void remove(long key) {
+        synchronized (this) {
+            removeLocked(key);
+        }
+        releaseRemovedBitmaps();
+    }
+
+    private void removeLocked(long key) {
+        Bitmap bitmap = mEntries.remove(key);
+        if (bitmap != null)
+            mRemovedBitmaps.add(bitmap);
+    }
+
+    public void evictExpired() {
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            int entry = mEntries.getEldest();
+            while (entry != LongLruMap.NO_ENTRY) {
+                int newer = mEntries.getNewer(entry);
+                if (mEntries.getExpirationTime(entry) <= now)
+                    removeLocked(mEntries.getKey(entry));
+                entry = newer;
+            }
+        }
+        releaseRemovedBitmaps();
+    }
+
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Evicts the least recently used charts until the cache takes at most the given size.
+     */
+    public void trimToSize(long maxSizeBytes) {
+        synchronized (this) {
+            trimToSizeLocked(maxSizeBytes);
+        }
+        releaseRemovedBitmaps();
+    }
+
+    private void trimToSizeLocked(long maxSizeBytes) {
+        while (mEntries.getTotalSize() > maxSizeBytes && mEntries.getEldest() != LongLruMap.NO_ENTRY) {
+            removeLocked(mEntries.getKey(mEntries.getEldest()));
+        }
+    }
+    /**
+     * Frees memory according to a ComponentCallbacks2 trim level: the less likely the process is to survive,
+     * the more is freed.
+     */
+    public void onTrimMemory(int level) {
+        LogUtils.i("ChartCache", "onTrimMemory: " + level);
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            evictAll();
+            mBitmapPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSize(mMaxSizeBytes / 4);
+            mBitmapPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            mBitmapPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxSizeBytes / 2);
+            mBitmapPool.clear();
+        }
+    }
+
+    public void onLowMemory() {
+        evictAll();
+        mBitmapPool.clear();
+    }
+
+    /**
+     * Passes the bitmaps that have left the cache to the pool, outside of the cache's lock since the checkers look
+     * at their fragments' views.
+     */
+    private void releaseRemovedBitmaps() {
+        Bitmap[] removedBitmaps;
+        synchronized (this) {
+            if (mRemovedBitmaps.isEmpty())
+                return;
+            removedBitmaps = mRemovedBitmaps.toArray(new Bitmap[mRemovedBitmaps.size()]);
+            mRemovedBitmaps.clear();
+        }
+
+        for (Bitmap bitmap : removedBitmaps) {
+            if (!isInUse(bitmap))
+                mBitmapPool.put(bitmap);
+        }
+    }
+
+    private boolean isInUse(Bitmap bitmap) {
+        for (BitmapsInUseChecker checker : mBitmapsInUseCheckers) {
+            if (checker.isInUse(bitmap))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+/**
+ * The series of a single chart, as decoded from its Google Chart API URL by {@link ChartDataDecoder}.
+ *
+ * Every series has a value per timestamp, missing values are NaN. The values are in the units of the chart's value
+ * axis, and the chart is drawn between getMinValue() and getMaxValue(). The arrays are shared, not copied, so they
+ * must not be modified.
+ */
+public class ChartData {
+    private final long[] mTimestamps;
+    private final float[][] mSeries;
+    private final int[] mColors;
+    private final String[] mLabels;
+    private final float mMinValue;
+    private final float mMaxValue;
+
+    // The chart downsampled for the latest width it was drawn at. Every cell of the grid has the same width, so
+    // rebinding and redrawing the chart reuse it.
+    private ChartData mDownsampled;
+    private int mDownsampledMaxPoints;
+
+    // The statistics of the first series, computed once in the background
+    private ChartStatistics mStatistics;
+    private boolean mStatisticsComputed;
+
+    // The lock only guards publishing the memoized results, they're computed outside of it so the UI thread can
+    // check for them without waiting on a computation in the background
+
+    public ChartData(long[] timestamps, float[][] series, int[] colors, String[] labels, float minValue,
+                     float maxValue) {
+        mTimestamps = timestamps;
+        mSeries = series;
+        mColors = colors;
+        mLabels = labels;
+        mMinValue = minValue;
+        mMaxValue = maxValue;
+    }
+
+    public int getPointsCount() {
+        return mTimestamps.length;
+    }
+
+    public int getSeriesCount() {
+        return mSeries.length;
+    }
+
+    public long[] getTimestamps() {
+        return mTimestamps;
+    }
+
+    public float[] getSeries(int seriesIndex) {
+        return mSeries[seriesIndex];
+    }
+
+    /** The series' ARGB color */
+    public int getColor(int seriesIndex) {
+        return mColors[seriesIndex];
+    }
+
+    /** The series' legend label, or null if it has none */
+    public String getLabel(int seriesIndex) {
+        return mLabels[seriesIndex];
+    }
+
+    public float getMinValue() {
+        return mMinValue;
+    }
+
+    public float getMaxValue() {
+        return mMaxValue;
+    }
+
+    /**
+     * @return The chart with at most the given number of points (e.g. one per pixel of its width), see
+     * {@link ChartDownsampler}. Computed unless it's memoized, so it should be called in the background.
+     */
+    public ChartData getDownsampled(int maxPoints) {
+        ChartData downsampled = peekDownsampled(maxPoints);
+        if (downsampled != null)
+            return downsampled;
+
+        downsampled = ChartDownsampler.downsample(this, maxPoints);
+        synchronized (this) {
+            mDownsampled = downsampled;
+            mDownsampledMaxPoints = maxPoints;
+        }
+        return downsampled;
+    }
+
+    /**
+     * @return The chart downsampled to the given number of points if it's already been, otherwise null
+     */
+    public synchronized ChartData peekDownsampled(int maxPoints) {
+        return (mDownsampledMaxPoints == maxPoints) ? mDownsampled : null;
+    }
+
+    /**
+     * @return The statistics of the chart's first series, see {@link ChartStatistics}. Null if all its values are
+     * missing. Computed by the first call, which should be made in the background.
+     */
+    public ChartStatistics getStatistics() {
+        synchronized (this) {
+            if (mStatisticsComputed)
+                return mStatistics;
+        }
+
+        ChartStatistics statistics = (getSeriesCount() > 0) ? ChartStatistics.compute(mSeries[0]) : null;
+        synchronized (this) {
+            mStatistics = statistics;
+            mStatisticsComputed = true;
+        }
+        return statistics;
+    }
+
+    /** Whether getStatistics() returns immediately, as it's already been computed */
+    public synchronized boolean hasStatistics() {
+        return mStatisticsComputed;
+    }
+}
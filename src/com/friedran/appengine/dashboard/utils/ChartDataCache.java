@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import android.os.SystemClock;
+
+/**
+ * The process-wide cache of the decoded data of charts that are drawn locally, keyed just like the ChartCache
+ * (see {@link ChartCache#getKey}), in a {@link LongLruMap} so lookups allocate nothing. A chart's data is a few KB
+ * at most, so the cache is simply limited by its number of entries, evicted by least recent use.
+ *
+ * Expired charts are kept until they're replaced, so they can be displayed meanwhile. All the methods are
+ * thread-safe.
+ */
+public class ChartDataCache {
+    private static final int MAX_ENTRIES = 512;
+
+    private static ChartDataCache sInstance;
+
+    private final LongLruMap<ChartData> mEntries = new LongLruMap<ChartData>(MAX_ENTRIES);
+
+    public static synchronized ChartDataCache getInstance() {
+        if (sInstance == null)
+            sInstance = new ChartDataCache();
+        return sInstance;
+    }
+
+    /**
+     * @return The chart's data even if it has expired, or null
+     */
+    public synchronized ChartData getStale(long key) {
+        int entry = mEntries.find(key);
+        if (entry == LongLruMap.NO_ENTRY)
+            return null;
+
+        mEntries.touch(entry);
+        return mEntries.getValue(entry);
+    }
+
+    public synchronized boolean isFresh(long key) {
+        int entry = mEntries.find(key);
+        return entry != LongLruMap.NO_ENTRY && mEntries.getExpirationTime(entry) > SystemClock.elapsedRealtime();
+    }
+
+    public synchronized void put(long key, ChartData data, long timeToLiveMillis) {
+        if (mEntries.find(key) == LongLruMap.NO_ENTRY && mEntries.isFull())
+            mEntries.remove(mEntries.getKey(mEntries.getEldest()));
+
+        mEntries.put(key, data, 1, SystemClock.elapsedRealtime() + timeToLiveMillis);
+    }
+
+    public synchronized void remove(long key) {
+        mEntries.remove(key);
+    }
+
+    public synchronized void evictAll() {
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the series of a Google Chart API line chart URL (as returned in the dashboard's chart_url), so the chart
+ * can be drawn locally instead of downloading its rendered image.
+ *
+ * Supports the chd encodings the Chart API offers:
+ *   s: simple, a character per value (0-61), series separated by commas
+ *   e: extended, two characters per value (0-4095), series separated by commas
+ *   t: text, comma separated floating point values, series separated by pipes, scaled by chds
+ * The simple and extended values are fractions of the value axis range (chxr), 0-100 by default like the Chart API.
+ *
+ * Only plain line charts (cht=lc or ls) are decoded, anything else returns null and should be rendered by the API.
+ *
+ * The URL doesn't carry the points' times - the dashboard's x-axis labels are only relative ("-30m" ... "now") - so
+ * they're approximated: the points are spread evenly over the chart's time window, ending at the time it was
+ * fetched. The approximated times are aligned to a multiple of the chart's step (its window's duration divided into
+ * its intervals), so the same point gets the same time in every fetch of the same window, however far apart the
+ * fetches are. They may still be off from the actual times by up to a step, and by however much the dashboard lags.
+ */
+public class ChartDataDecoder {
+    private static final String SIMPLE_ENCODING_CHARS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    private static final String EXTENDED_ENCODING_CHARS = SIMPLE_ENCODING_CHARS + "-.";
+    private static final int SIMPLE_ENCODING_MAX = SIMPLE_ENCODING_CHARS.length() - 1;
+    private static final int EXTENDED_ENCODING_MAX = EXTENDED_ENCODING_CHARS.length() * EXTENDED_ENCODING_CHARS.length() - 1;
+
+    private static final float DEFAULT_MIN_VALUE = 0;
+    private static final float DEFAULT_MAX_VALUE = 100;
+
+    // The Chart API's default series color
+    private static final int DEFAULT_COLOR = 0xffff9900;
+
+    /**
+     * @param endTimeMillis The time the chart was fetched, its last point is placed at the step boundary before it and
+     *                      the rest are spread evenly over the duration before that
+     * @return The chart's data, or null if it isn't a line chart or its data can't be decoded
+     */
+    public static ChartData decode(String chartUrl, long endTimeMillis, long durationMillis) {
+        Map<String, String> parameters = parseQuery(chartUrl);
+        String chartType = parameters.get("cht");
+        String data = parameters.get("chd");
+        if (data == null || !("lc".equals(chartType) || "ls".equals(chartType)))
+            return null;
+
+        int separator = data.indexOf(':');
+        if (separator < 1)
+            return null;
+
+        // The encoding may be followed by the number of series to draw as lines (e.g. "t1:"), they're all lines here
+        char encoding = data.charAt(0);
+        String encodedSeries = data.substring(separator + 1);
+
+        try {
+            float[][] series;
+            float minValue;
+            float maxValue;
+
+            if (encoding == 't') {
+                series = decodeText(encodedSeries);
+                float[] scale = parseTextScale(parameters.get("chds"), series);
+                minValue = scale[0];
+                maxValue = scale[1];
+
+                // Without a custom scale, negative values are the ones that are missing
+                if (parameters.get("chds") == null)
+                    markNegativeAsMissing(series);
+
+            } else if (encoding == 's' || encoding == 'e') {
+                float[] range = parseValueAxisRange(parameters.get("chxt"), parameters.get("chxr"));
+                minValue = range[0];
+                maxValue = range[1];
+                series = (encoding == 's')
+                        ? decodeCharacters(encodedSeries, 1, SIMPLE_ENCODING_CHARS, SIMPLE_ENCODING_MAX, minValue, maxValue)
+                        : decodeCharacters(encodedSeries, 2, EXTENDED_ENCODING_CHARS, EXTENDED_ENCODING_MAX, minValue, maxValue);
+
+            } else {
+                return null;
+            }
+
+            if (series.length == 0 || maxValue <= minValue)
+                return null;
+
+            return new ChartData(createTimestamps(series, endTimeMillis, durationMillis), series,
+                    parseColors(parameters.get("chco"), series.length),
+                    parseLabels(parameters.get("chdl"), series.length), minValue, maxValue);
+
+        } catch (IllegalArgumentException e) {
+            // Including NumberFormatException
+            LogUtils.e("ChartDataDecoder", "Failed decoding the chart data: " + data, e);
+            return null;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String url) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        int queryStart = url.indexOf('?');
+        if (queryStart < 0)
+            return parameters;
+
+        for (String parameter : url.substring(queryStart + 1).split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator <= 0)
+                continue;
+
+            try {
+                parameters.put(parameter.substring(0, separator),
+                        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            } catch (IllegalArgumentException e) {
+                // A malformed escape, the parameter is skipped
+            }
+        }
+        return parameters;
+    }
+
+    // Decodes the simple or extended encoding, where each value takes charsPerValue characters
+    private static float[][] decodeCharacters(String encodedSeries, int charsPerValue, String chars, int maxEncodedValue,
+                                              float minValue, float maxValue) {
+        String[] encodedValues = encodedSeries.split(",", -1);
+        float[][] series = new float[encodedValues.length][];
+        float scale = (maxValue - minValue) / maxEncodedValue;
+
+        for (int i = 0; i < encodedValues.length; i++) {
+            String values = encodedValues[i];
+            if (values.length() % charsPerValue != 0)
+                throw new IllegalArgumentException("Truncated series: " + values);
+
+            float[] decodedValues = new float[values.length() / charsPerValue];
+            for (int j = 0; j < decodedValues.length; j++) {
+                int encodedValue = 0;
+                boolean missing = false;
+
+                for (int k = 0; k < charsPerValue; k++) {
+                    char c = values.charAt(j * charsPerValue + k);
+                    int digit = chars.indexOf(c);
+                    if (c == '_') {
+                        missing = true;
+                    } else if (digit < 0) {
+                        throw new IllegalArgumentException("Invalid character '" + c + "' in series: " + values);
+                    }
+                    encodedValue = encodedValue * chars.length() + digit;
+                }
+
+                decodedValues[j] = missing ? Float.NaN : minValue + encodedValue * scale;
+            }
+            series[i] = decodedValues;
+        }
+        return series;
+    }
+
+    private static float[][] decodeText(String encodedSeries) {
+        String[] encodedValues = encodedSeries.split("\\|", -1);
+        float[][] series = new float[encodedValues.length][];
+
+        for (int i = 0; i < encodedValues.length; i++) {
+            String[] values = encodedValues[i].split(",", -1);
+            float[] decodedValues = new float[values.length];
+            for (int j = 0; j < values.length; j++) {
+                String value = values[j].trim();
+                decodedValues[j] = (value.length() == 0 || value.equals("_")) ? Float.NaN : Float.parseFloat(value);
+            }
+            series[i] = decodedValues;
+        }
+        return series;
+    }
+
+    private static void markNegativeAsMissing(float[][] series) {
+        for (float[] values : series) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] < 0)
+                    values[i] = Float.NaN;
+            }
+        }
+    }
+
+    /**
+     * The range of a text encoded chart - the first chds pair (every series is drawn on the same scale here), the
+     * data's own range for chds=a, or 0-100 by default.
+     */
+    private static float[] parseTextScale(String scale, float[][] series) {
+        if (scale == null)
+            return new float[] {DEFAULT_MIN_VALUE, DEFAULT_MAX_VALUE};
+
+        if (scale.equals("a")) {
+            float minValue = Float.POSITIVE_INFINITY;
+            float maxValue = Float.NEGATIVE_INFINITY;
+            for (float[] values : series) {
+                for (float value : values) {
+                    if (value < minValue)
+                        minValue = value;
+                    if (value > maxValue)
+                        maxValue = value;
+                }
+            }
+
+            if (minValue > maxValue)
+                return new float[] {DEFAULT_MIN_VALUE, DEFAULT_MAX_VALUE};
+            // A flat series still gets a range to be drawn in
+            if (minValue == maxValue)
+                maxValue = minValue + 1;
+            return new float[] {Math.min(0, minValue), maxValue};
+        }
+
+        String[] bounds = scale.split(",");
+        if (bounds.length < 2)
+            throw new IllegalArgumentException("Invalid chds: " + scale);
+        return new float[] {Float.parseFloat(bounds[0]), Float.parseFloat(bounds[1])};
+    }
+
+    /** The range of the first value (y) axis in chxr, or 0-100 if it has no explicit range */
+    private static float[] parseValueAxisRange(String axisTypes, String axisRanges) {
+        if (axisTypes == null || axisRanges == null)
+            return new float[] {DEFAULT_MIN_VALUE, DEFAULT_MAX_VALUE};
+
+        String[] types = axisTypes.split(",");
+        int valueAxisIndex = -1;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].trim().equals("y")) {
+                valueAxisIndex = i;
+                break;
+            }
+        }
+
+        for (String range : axisRanges.split("\\|")) {
+            String[] fields = range.split(",");
+            if (fields.length >= 3 && Integer.parseInt(fields[0].trim()) == valueAxisIndex)
+                return new float[] {Float.parseFloat(fields[1]), Float.parseFloat(fields[2])};
+        }
+        return new float[] {DEFAULT_MIN_VALUE, DEFAULT_MAX_VALUE};
+    }
+
+    // The Chart API repeats the given colors when there are more series than colors
+    private static int[] parseColors(String colorsParameter, int seriesCount) {
+        String[] colors = (colorsParameter != null) ? colorsParameter.split(",") : new String[0];
+        int[] parsedColors = new int[seriesCount];
+
+        for (int i = 0; i < seriesCount; i++) {
+            if (colors.length == 0) {
+                parsedColors[i] = DEFAULT_COLOR;
+                continue;
+            }
+
+            String color = colors[i % colors.length].trim();
+            long rgba = Long.parseLong(color, 16);
+            if (color.length() == 6)
+                parsedColors[i] = (int) (0xff000000L | rgba);
+            else if (color.length() == 8)
+                parsedColors[i] = (int) (((rgba & 0xff) << 24) | (rgba >>> 8));
+            else
+                throw new IllegalArgumentException("Invalid color: " + color);
+        }
+        return parsedColors;
+    }
+
+    private static String[] parseLabels(String labelsParameter, int seriesCount) {
+        String[] labels = new String[seriesCount];
+        if (labelsParameter != null) {
+            String[] parsedLabels = labelsParameter.split("\\|", -1);
+            System.arraycopy(parsedLabels, 0, labels, 0, Math.min(seriesCount, parsedLabels.length));
+        }
+        return labels;
+    }
+
+    /**
+     * Spreads the points evenly over the duration, ending at the last step boundary. Shorter series are padded with
+     * missing values.
+     */
+    private static long[] createTimestamps(float[][] series, long endTimeMillis, long durationMillis) {
+        int pointsCount = 0;
+        for (float[] values : series) {
+            pointsCount = Math.max(pointsCount, values.length);
+        }
+
+        for (int i = 0; i < series.length; i++) {
+            if (series[i].length < pointsCount) {
+                float[] paddedValues = Arrays.copyOf(series[i], pointsCount);
+                Arrays.fill(paddedValues, series[i].length, pointsCount, Float.NaN);
+                series[i] = paddedValues;
+            }
+        }
+
+        long[] timestamps = new long[pointsCount];
+        if (pointsCount == 1) {
+            timestamps[0] = endTimeMillis;
+            return timestamps;
+        }
+
+        long stepMillis = Math.max(1, durationMillis / (pointsCount - 1));
+        long alignedEndTimeMillis = endTimeMillis - endTimeMillis % stepMillis;
+        long startTimeMillis = alignedEndTimeMillis - stepMillis * (pointsCount - 1);
+        for (int i = 0; i < pointsCount; i++) {
+            timestamps[i] = startTimeMillis + stepMillis * i;
+        }
+        return timestamps;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+/**
+ * Reduces a chart to at most a given number of points with the Largest-Triangle-Three-Buckets algorithm, which keeps
+ * the points that shape the lines (peaks and dips) rather than averaging them away.
+ *
+ * The points are split into equal buckets, and from each one the point forming the largest triangle with the point
+ * selected from the previous bucket and the average of the next bucket is selected. All the series share the
+ * selected points, so the areas of every series are summed. A point missing from every series is always selected,
+ * so gaps in the chart stay visible.
+ */
+public class ChartDownsampler {
+    private static final int MIN_THRESHOLD = 3;
+
+    /**
+     * @return The chart reduced to at most maxPoints points, or the chart itself if it's already small enough
+     */
+    public static ChartData downsample(ChartData data, int maxPoints) {
+        int pointsCount = data.getPointsCount();
+        if (maxPoints < MIN_THRESHOLD || pointsCount <= maxPoints)
+            return data;
+
+        int[] selected = selectPoints(data, maxPoints);
+
+        long[] timestamps = data.getTimestamps();
+        long[] selectedTimestamps = new long[selected.length];
+        for (int i = 0; i < selected.length; i++) {
+            selectedTimestamps[i] = timestamps[selected[i]];
+        }
+
+        int seriesCount = data.getSeriesCount();
+        float[][] selectedSeries = new float[seriesCount][selected.length];
+        int[] colors = new int[seriesCount];
+        String[] labels = new String[seriesCount];
+        for (int s = 0; s < seriesCount; s++) {
+            float[] values = data.getSeries(s);
+            for (int i = 0; i < selected.length; i++) {
+                selectedSeries[s][i] = values[selected[i]];
+            }
+            colors[s] = data.getColor(s);
+            labels[s] = data.getLabel(s);
+        }
+
+        // The range stays the original one, so the chart doesn't rescale between widths
+        return new ChartData(selectedTimestamps, selectedSeries, colors, labels, data.getMinValue(),
+                data.getMaxValue());
+    }
+
+    private static int[] selectPoints(ChartData data, int threshold) {
+        long[] timestamps = data.getTimestamps();
+        int pointsCount = timestamps.length;
+        int seriesCount = data.getSeriesCount();
+        long startTime = timestamps[0];
+
+        int[] selected = new int[threshold];
+        float[] averages = new float[seriesCount];
+
+        // The first and last points are always selected, the rest are split into threshold - 2 buckets
+        double bucketSize = (double) (pointsCount - 2) / (threshold - 2);
+        int previous = 0;
+        selected[0] = 0;
+
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int bucketStart = (int) (bucket * bucketSize) + 1;
+            int bucketEnd = (int) ((bucket + 1) * bucketSize) + 1;
+
+            // The average point of the next bucket, the last point stands for it after the last bucket
+            int nextStart = bucketEnd;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, pointsCount);
+            double averageX = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                averageX += timestamps[i] - startTime;
+            }
+            averageX /= (nextEnd - nextStart);
+            for (int s = 0; s < seriesCount; s++) {
+                averages[s] = average(data.getSeries(s), nextStart, nextEnd);
+            }
+
+            double previousX = timestamps[previous] - startTime;
+            double maxArea = -1;
+            int maxAreaPoint = bucketStart;
+
+            for (int i = bucketStart; i < bucketEnd; i++) {
+                double x = timestamps[i] - startTime;
+                double area = 0;
+                boolean missingFromAll = true;
+
+                for (int s = 0; s < seriesCount; s++) {
+                    float[] values = data.getSeries(s);
+                    float y = values[i];
+                    if (Float.isNaN(y))
+                        continue;
+                    missingFromAll = false;
+
+                    float previousY = values[previous];
+                    float averageY = averages[s];
+                    if (Float.isNaN(previousY) || Float.isNaN(averageY))
+                        continue;
+
+                    // Twice the triangle's area, which is just as good for comparing
+                    area += Math.abs((previousX - averageX) * (y - previousY) - (previousX - x) * (averageY - previousY));
+                }
+
+                if (missingFromAll) {
+                    maxAreaPoint = i;
+                    break;
+                }
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxAreaPoint = i;
+                }
+            }
+
+            selected[bucket + 1] = maxAreaPoint;
+            previous = maxAreaPoint;
+        }
+
+        selected[threshold - 1] = pointsCount - 1;
+        return selected;
+    }
+
+    // The average of the values that aren't missing, NaN if they all are
+    private static float average(float[] values, int start, int end) {
+        double sum = 0;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (!Float.isNaN(values[i])) {
+                sum += values[i];
+                count++;
+            }
+        }
+        return (count > 0) ? (float) (sum / count) : Float.NaN;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import java.util.Arrays;
+
+/**
+ * The summary of a chart series - its minimum, maximum, mean, last and 95th percentile values.
+ *
+ * All of them are computed in a single pass over the values, without copying or sorting them. The percentile is
+ * estimated with the P-Square algorithm (Jain & Chlamtac), which keeps just five markers whose heights approximate
+ * the minimum, the 47.5th, 95th and 97.5th percentiles and the maximum, and adjusts them as each value arrives.
+ */
+public class ChartStatistics {
+    private static final float PERCENTILE = 0.95f;
+    private static final int MARKERS_COUNT = 5;
+
+    private final int mCount;
+    private final float mMin;
+    private final float mMax;
+    private final float mMean;
+    private final float mLast;
+    private final float mPercentile95;
+
+    private ChartStatistics(int count, float min, float max, float mean, float last, float percentile95) {
+        mCount = count;
+        mMin = min;
+        mMax = max;
+        mMean = mean;
+        mLast = last;
+        mPercentile95 = percentile95;
+    }
+
+    /**
+     * @return The statistics of the values that aren't missing (NaN), or null if they all are
+     */
+    public static ChartStatistics compute(float[] values) {
+        int count = 0;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        double sum = 0;
+        float last = Float.NaN;
+
+        // The marker heights and their actual and desired positions
+        float[] heights = new float[MARKERS_COUNT];
+        int[] positions = new int[MARKERS_COUNT];
+        double[] desiredPositions = new double[MARKERS_COUNT];
+        double[] desiredIncrements = {0, PERCENTILE / 2, PERCENTILE, (1 + PERCENTILE) / 2, 1};
+
+        for (float value : values) {
+            if (Float.isNaN(value))
+                continue;
+
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            last = value;
+
+            // The first values initialize the markers
+            if (count <= MARKERS_COUNT) {
+                heights[count - 1] = value;
+                if (count == MARKERS_COUNT) {
+                    Arrays.sort(heights);
+                    for (int i = 0; i < MARKERS_COUNT; i++) {
+                        positions[i] = i + 1;
+                        desiredPositions[i] = 1 + (MARKERS_COUNT - 1) * desiredIncrements[i];
+                    }
+                }
+                continue;
+            }
+
+            addToMarkers(value, heights, positions, desiredPositions, desiredIncrements);
+        }
+
+        if (count == 0)
+            return null;
+
+        float percentile95;
+        if (count <= MARKERS_COUNT) {
+            // The markers haven't moved yet, so the nearest rank is taken from the values themselves
+            float[] sorted = Arrays.copyOf(heights, count);
+            Arrays.sort(sorted);
+            percentile95 = sorted[(int) Math.ceil(PERCENTILE * count) - 1];
+        } else {
+            percentile95 = heights[2];
+        }
+
+        return new ChartStatistics(count, min, max, (float) (sum / count), last, percentile95);
+    }
+
+    private static void addToMarkers(float value, float[] heights, int[] positions, double[] desiredPositions,
+                                     double[] desiredIncrements) {
+        // The cell the value falls in, the extreme markers follow the minimum and maximum
+        int cell;
+        if (value < heights[0]) {
+            heights[0] = value;
+            cell = 0;
+        } else if (value >= heights[MARKERS_COUNT - 1]) {
+            heights[MARKERS_COUNT - 1] = value;
+            cell = MARKERS_COUNT - 2;
+        } else {
+            cell = 0;
+            while (value >= heights[cell + 1])
+                cell++;
+        }
+
+        for (int i = cell + 1; i < MARKERS_COUNT; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < MARKERS_COUNT; i++) {
+            desiredPositions[i] += desiredIncrements[i];
+        }
+
+        // The middle markers are moved by a position at most towards their desired ones
+        for (int i = 1; i < MARKERS_COUNT - 1; i++) {
+            double offset = desiredPositions[i] - positions[i];
+            if ((offset >= 1 && positions[i + 1] - positions[i] > 1) ||
+                    (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int direction = (offset > 0) ? 1 : -1;
+
+                float height = parabolic(i, direction, heights, positions);
+                if (heights[i - 1] < height && height < heights[i + 1])
+                    heights[i] = height;
+                else
+                    heights[i] = linear(i, direction, heights, positions);
+
+                positions[i] += direction;
+            }
+        }
+    }
+
+    private static float parabolic(int i, int direction, float[] heights, int[] positions) {
+        double previousSlope = (double) (heights[i] - heights[i - 1]) / (positions[i] - positions[i - 1]);
+        double nextSlope = (double) (heights[i + 1] - heights[i]) / (positions[i + 1] - positions[i]);
+        return (float) (heights[i] + (double) direction / (positions[i + 1] - positions[i - 1]) *
+                ((positions[i] - positions[i - 1] + direction) * nextSlope +
+                        (positions[i + 1] - positions[i] - direction) * previousSlope));
+    }
+
+    private static float linear(int i, int direction, float[] heights, int[] positions) {
+        return heights[i] + direction * (heights[i + direction] - heights[i]) /
+                (positions[i + direction] - positions[i]);
+    }
+
+    /** The number of values that aren't missing */
+    public int getCount() {
+        return mCount;
+    }
+
+    public float getMin() {
+        return mMin;
+    }
+
+    public float getMax() {
+        return mMax;
+    }
+
+    public float getMean() {
+        return mMean;
+    }
+
+    /** The most recent value that isn't missing */
+    public float getLast() {
+        return mLast;
+    }
+
+    /** Estimated, but exact for up to five values */
+    public float getPercentile95() {
+        return mPercentile95;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+/**
+ * Details of the AppEngine dashboard time windows, indexed by their window ID (the order of R.array.load_time_options).
+ */
+public class ChartTimeWindows {
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    private static final long[] WINDOW_DURATIONS_MILLIS = {
+            30 * MINUTE_MILLIS,
+            3 * HOUR_MILLIS,
+            6 * HOUR_MILLIS,
+            12 * HOUR_MILLIS,
+            24 * HOUR_MILLIS,
+            2 * DAY_MILLIS,
+            4 * DAY_MILLIS,
+            7 * DAY_MILLIS,
+            14 * DAY_MILLIS,
+            30 * DAY_MILLIS
+    };
+
+    // A chart barely changes until a few of its pixel columns' worth of time has passed
+    private static final int TIME_TO_LIVE_FRACTION = 30;
+    private static final long MIN_TIME_TO_LIVE_MILLIS = MINUTE_MILLIS;
+
+    public static int getWindowsCount() {
+        return WINDOW_DURATIONS_MILLIS.length;
+    }
+
+    public static long getDurationMillis(int windowID) {
+        return WINDOW_DURATIONS_MILLIS[windowID];
+    }
+
+    /**
+     * Returns how long data of the given window can be displayed before it's considered outdated.
+     */
+    public static long getTimeToLiveMillis(int windowID) {
+        return Math.max(MIN_TIME_TO_LIVE_MILLIS, WINDOW_DURATIONS_MILLIS[windowID] / TIME_TO_LIVE_FRACTION);
+    }
+}
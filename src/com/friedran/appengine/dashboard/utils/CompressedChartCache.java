@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+
+/**
+ * The process-wide cache of compressed chart images (their PNG bytes), behind the ChartCache of decoded charts.
+ * A chart takes a few KB compressed rather than hundreds decoded, so this tier keeps every time window of several
+ * applications, and a chart evicted from the ChartCache is decoded again from here instead of being downloaded.
+ *
+ * Keyed just like the ChartCache (see {@link ChartCache#getKey}) in a {@link LongLruMap}, so lookups allocate
+ * nothing. Limited by the total size of the bytes and evicted by least recent use. Expired charts are kept until they're replaced, so they can be displayed meanwhile.
+ * All the methods are thread-safe.
+ *
+ * Charts found in the disk cache are read into the heap to be put here, rather than decoded straight from their
+ * file: a copy of a few KB per chart, traded for decoding an evicted chart again without its URL or the disk.
+ */
+public class CompressedChartCache {
+    private static CompressedChartCache sInstance;
+
+    // Enough for every time window of the charts of dozens of applications, long before the size limit is reached
+    private static final int MAX_ENTRIES = 4096;
+
+    private final long mMaxSizeBytes;
+    private final LongLruMap<byte[]> mEntries = new LongLruMap<byte[]>(MAX_ENTRIES);
+
+    public static synchronized CompressedChartCache getInstance() {
+        if (sInstance == null)
+            sInstance = new CompressedChartCache(Runtime.getRuntime().maxMemory() / 16);
+        return sInstance;
+    }
+
+    CompressedChartCache(long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @return The chart's compressed bytes even if it has expired, or null. The array must not be modified.
+     */
+    public synchronized byte[] getStale(long key) {
+        int entry = mEntries.find(key);
+        if (entry == LongLruMap.NO_ENTRY)
+            return null;
+
+        mEntries.touch(entry);
+        return mEntries.getValue(entry);
+    }
+
+    public synchronized boolean isFresh(long key) {
+        int entry = mEntries.find(key);
+        return entry != LongLruMap.NO_ENTRY && mEntries.getExpirationTime(entry) > SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return How long the chart has left until it expires, negative if it already has, or 0 if it isn't cached
+     */
+    public synchronized long getTimeToLiveMillis(long key) {
+        int entry = mEntries.find(key);
+        return (entry != LongLruMap.NO_ENTRY) ? mEntries.getExpirationTime(entry) - SystemClock.elapsedRealtime() : 0;
+    }
+
+    public synchronized void put(long key, byte[] bytes, long timeToLiveMillis) {
+        if (bytes.length > mMaxSizeBytes) {
+            remove(key);
+            return;
+        }
+
+        if (mEntries.find(key) == LongLruMap.NO_ENTRY && mEntries.isFull())
+            mEntries.remove(mEntries.getKey(mEntries.getEldest()));
+
+        mEntries.put(key, bytes, bytes.length, SystemClock.elapsedRealtime() + timeToLiveMillis);
+        trimToSize(mMaxSizeBytes);
+    }
+
+    public synchronized void remove(long key) {
+        mEntries.remove(key);
+    }
+
+    public synchronized void evictAll() {
+        mEntries.clear();
+    }
+
+    /**
+     * Evicts the least recently used charts until the cache takes at most the given size.
+     */
+    public synchronized void trimToSize(long maxSizeBytes) {
+        while (mEntries.getTotalSize() > maxSizeBytes && mEntries.getEldest() != LongLruMap.NO_ENTRY) {
+            mEntries.remove(mEntries.getKey(mEntries.getEldest()));
+        }
+    }
+
+    /**
+     * Frees memory according to a ComponentCallbacks2 trim level. The charts are small and still on disk, so only
+     * a process that's likely to be killed gives them up.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            evictAll();
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+            trimToSize(mMaxSizeBytes / 2);
+    }
+
+    public void onLowMemory() {
+        evictAll();
+    }
+}
@@ -21,12 +21,16 @@ import android.util.Log;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Responsible for saving and managing the app-specific preferences
  */
 public class DashboardPreferences {
 
     private static final String KEY_LOGIN_ACCOUNT = "KEY_LOGIN_ACCOUNT";
+    private static final String KEY_APPLICATIONS_PREFIX = "KEY_APPLICATIONS_";
 
     private SharedPreferences mPreferences;
 
@@ -64,4 +68,32 @@ public class DashboardPreferences {
         mPreferences.edit().remove(KEY_LOGIN_ACCOUNT).commit();
     }
 
+    /**
+     * @return The last applications list retrieved for the given account, or null if there isn't any
+     */
+    public List<String> getSavedApplications(Account account) {
+        String applicationsJson = mPreferences.getString(KEY_APPLICATIONS_PREFIX + account.name, null);
+        if (applicationsJson == null)
+            return null;
+
+        try {
+            String[] applications = (new Gson()).fromJson(applicationsJson, String[].class);
+            return (applications != null) ? Arrays.asList(applications) : null;
+
+        } catch (JsonSyntaxException e) {
+            LogUtils.e("DashboardPreferences", "Saved applications are corrupted, resetting them");
+            resetSavedApplications(account);
+            return null;
+        }
+    }
+
+    public void saveApplications(Account account, List<String> applications) {
+        String applicationsJson = (new Gson()).toJson(applications.toArray(new String[applications.size()]));
+        mPreferences.edit().putString(KEY_APPLICATIONS_PREFIX + account.name, applicationsJson).commit();
+    }
+
+    public void resetSavedApplications(Account account) {
+        mPreferences.edit().remove(KEY_APPLICATIONS_PREFIX + account.name).commit();
+    }
+
 }
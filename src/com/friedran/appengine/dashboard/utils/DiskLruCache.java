@@ -0,0 +1,314 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of files in a directory, limited by their total size and evicted by least recent use.
+ *
+ * Each operation is appended to a journal, from which the entries and their LRU order are rebuilt when the cache is
+ * opened again:
+ *   CLEAN key size - the entry's file has been completely written
+ *   READ key - the entry has been accessed
+ *   REMOVE key - the entry has been removed or evicted
+ * Entries are written to a temporary file that's renamed once complete, so a crash can only lose entries whose
+ * CLEAN line wasn't written - their files are deleted as orphans on the next open. The journal is rewritten once
+ * it has grown much larger than the entries it describes.
+ *
+ * Keys must be usable as file names and can't contain whitespace. All the methods are thread-safe, and may block on
+ * disk I/O so they shouldn't be called from the UI thread.
+ */
+public class DiskLruCache {
+    private static final String JOURNAL_FILE_NAME = "journal";
+    private static final String JOURNAL_TEMP_FILE_NAME = "journal.tmp";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // The journal is compacted when it has this many more lines than there are entries
+    private static final int REDUNDANT_LINES_THRESHOLD = 1000;
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final LinkedHashMap<String, Long> mEntrySizes = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private long mSizeBytes;
+    private int mRedundantLinesCount;
+    private Writer mJournalWriter;
+
+    private DiskLruCache(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Opens the cache in the given directory, creating it if required.
+     */
+    public static DiskLruCache open(File directory, long maxSizeBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Couldn't create the cache directory " + directory);
+
+        DiskLruCache cache = new DiskLruCache(directory, maxSizeBytes);
+        cache.readJournal();
+        cache.deleteOrphanFiles();
+        cache.rebuildJournal();
+        cache.trimToSize();
+        return cache;
+    }
+
+    /**
+     * @return The entry's file, or null if it isn't cached. The file may be deleted by a later eviction.
+     */
+    public synchronized File get(String key) {
+        if (mEntrySizes.get(key) == null)
+            return null;
+
+        File file = getEntryFile(key);
+        if (!file.exists()) {
+            // Deleted behind our back, e.g. by the system clearing the cache directory
+            remove(key);
+            return null;
+        }
+
+        appendJournalLine(READ, key, null);
+        return file;
+    }
+
+    /**
+     * Writes the given stream's content as the entry's file, replacing any previous one.
+     * The stream is written outside of the lock, so a slow download doesn't block other entries.
+     * @return The entry's file
+     */
+    public File put(String key, InputStream in) throws IOException {
+        File tempFile = new File(mDirectory, key + TEMP_FILE_SUFFIX + Thread.currentThread().getId());
+        long sizeBytes = 0;
+
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                sizeBytes += count;
+            }
+        } catch (IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+
+        return commit(key, tempFile, sizeBytes);
+    }
+
+    private synchronized File commit(String key, File tempFile, long sizeBytes) throws IOException {
+        File file = getEntryFile(key);
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Couldn't rename " + tempFile + " to " + file);
+        }
+
+        Long previousSizeBytes = mEntrySizes.put(key, sizeBytes);
+        if (previousSizeBytes != null) {
+            mSizeBytes -= previousSizeBytes;
+            mRedundantLinesCount++;
+        }
+        mSizeBytes += sizeBytes;
+        appendJournalLine(CLEAN, key, sizeBytes);
+
+        trimToSize();
+        return file;
+    }
+
+    public synchronized void remove(String key) {
+        Long sizeBytes = mEntrySizes.remove(key);
+        if (sizeBytes == null)
+            return;
+
+        getEntryFile(key).delete();
+        mSizeBytes -= sizeBytes;
+        appendJournalLine(REMOVE, key, null);
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntrySizes.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+
+            getEntryFile(eldest.getKey()).delete();
+            mSizeBytes -= eldest.getValue();
+            appendJournalLine(REMOVE, eldest.getKey(), null);
+        }
+    }
+
+    private void appendJournalLine(String operation, String key, Long sizeBytes) {
+        if (mJournalWriter == null)
+            return;
+
+        try {
+            mJournalWriter.write(operation + " " + key + ((sizeBytes != null) ? " " + sizeBytes : "") + "\n");
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            // Without a journal the entries are lost on the next open, but the cache still works meanwhile
+            LogUtils.e("DiskLruCache", "Failed writing to the journal, disabling it", e);
+            closeJournal();
+            return;
+        }
+
+        // Every line that doesn't add an entry would be dropped by a rebuild
+        if (!CLEAN.equals(operation))
+            mRedundantLinesCount++;
+        if (mRedundantLinesCount >= REDUNDANT_LINES_THRESHOLD + mEntrySizes.size()) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                LogUtils.e("DiskLruCache", "Failed compacting the journal, disabling it", e);
+                closeJournal();
+            }
+        }
+    }
+
+    private void readJournal() {
+        File journalFile = new File(mDirectory, JOURNAL_FILE_NAME);
+        if (!journalFile.exists())
+            return;
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    readJournalLine(line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // Whatever has been read so far is kept, the rest of the files become orphans
+            LogUtils.e("DiskLruCache", "Failed reading the journal", e);
+        }
+    }
+
+    private void readJournalLine(String line) {
+        String[] parts = line.split(" ");
+
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            try {
+                long sizeBytes = Long.parseLong(parts[2]);
+                Long previousSizeBytes = mEntrySizes.put(parts[1], sizeBytes);
+                if (previousSizeBytes != null)
+                    mSizeBytes -= previousSizeBytes;
+                mSizeBytes += sizeBytes;
+            } catch (NumberFormatException e) {
+                // A line cut by a crash, ignored
+            }
+
+        } else if (READ.equals(parts[0]) && parts.length == 2) {
+            mEntrySizes.get(parts[1]);
+
+        } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+            Long sizeBytes = mEntrySizes.remove(parts[1]);
+            if (sizeBytes != null)
+                mSizeBytes -= sizeBytes;
+        }
+    }
+
+    // Deletes temporary files and files that have no entry, and entries whose file is missing
+    private void deleteOrphanFiles() {
+        Set<String> fileNames = new HashSet<String>();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(JOURNAL_FILE_NAME))
+                    continue;
+
+                if (mEntrySizes.containsKey(name))
+                    fileNames.add(name);
+                else
+                    file.delete();
+            }
+        }
+
+        Iterator<Map.Entry<String, Long>> iterator = mEntrySizes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (!fileNames.contains(entry.getKey())) {
+                iterator.remove();
+                mSizeBytes -= entry.getValue();
+            }
+        }
+    }
+
+    // Writes a journal with a single line per entry in LRU order, replacing the current one atomically
+    private void rebuildJournal() throws IOException {
+        closeJournal();
+
+        File tempJournalFile = new File(mDirectory, JOURNAL_TEMP_FILE_NAME);
+        Writer writer = new BufferedWriter(new FileWriter(tempJournalFile));
+        try {
+            for (Map.Entry<String, Long> entry : mEntrySizes.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        File journalFile = new File(mDirectory, JOURNAL_FILE_NAME);
+        if (!tempJournalFile.renameTo(journalFile))
+            throw new IOException("Couldn't rename " + tempJournalFile + " to " + journalFile);
+
+        mJournalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+        mRedundantLinesCount = 0;
+    }
+
+    private void closeJournal() {
+        if (mJournalWriter == null)
+            return;
+
+        try {
+            mJournalWriter.close();
+        } catch (IOException e) {
+            // Nothing more to do with it anyway
+        }
+        mJournalWriter = null;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * An LruCache whose entries also expire after a time-to-live given when they're put.
+ * Expired entries are treated as missing, and are evicted lazily or by {@link #evictExpired()}.
+ */
+public class ExpiringLruCache<V> {
+    private final LruCache<String, Entry<V>> mCache;
+
+    private static class Entry<V> {
+        final V mValue;
+        final long mExpirationTime;
+
+        Entry(V value, long expirationTime) {
+            mValue = value;
+            mExpirationTime = expirationTime;
+        }
+
+        boolean isExpired(long now) {
+            return now >= mExpirationTime;
+        }
+    }
+
+    public ExpiringLruCache(int maxSize) {
+        mCache = new LruCache<String, Entry<V>>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry<V> entry) {
+                return ExpiringLruCache.this.sizeOf(key, entry.mValue);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry<V> oldEntry, Entry<V> newEntry) {
+                ExpiringLruCache.this.entryRemoved(key, oldEntry.mValue, (newEntry != null) ? newEntry.mValue : null);
+            }
+        };
+    }
+
+    /**
+     * Called whenever a value leaves the cache, by eviction, expiration, removal or replacement by newValue
+     * (null unless it's replaced). Called on the thread that has caused the removal. Does nothing by default.
+     */
+    protected void entryRemoved(String key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Returns the size of the given entry in the units of the maxSize given to the constructor. Defaults to 1.
+     */
+    protected int sizeOf(String key, V value) {
+        return 1;
+    }
+
+    /**
+     * Returns the cached value, or null if it's missing or has expired.
+     */
+    public V get(String key) {
+        Entry<V> entry = mCache.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.isExpired(SystemClock.elapsedRealtime())) {
+            mCache.remove(key);
+            return null;
+        }
+
+        return entry.mValue;
+    }
+
+    public void put(String key, V value, long timeToLiveMillis) {
+        mCache.put(key, new Entry<V>(value, SystemClock.elapsedRealtime() + timeToLiveMillis));
+    }
+
+    public void remove(String key) {
+        mCache.remove(key);
+    }
+
+    public void evictExpired() {
+        long now = SystemClock.elapsedRealtime();
+        for (Map.Entry<String, Entry<V>> entry : mCache.snapshot().entrySet()) {
+            if (entry.getValue().isExpired(now))
+                mCache.remove(entry.getKey());
+        }
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+}
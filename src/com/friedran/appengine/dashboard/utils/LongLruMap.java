@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import java.util.Arrays;
+
+/**
+ * The storage of the chart caches: a map of long keys (see {@link ChartCache#getKey}) to values with a size and an
+ * expiration time, in least recently used order, which allocates nothing once created.
+ *
+ * The entries are kept in preallocated arrays - an open-addressing hash table of entry indices, and a doubly linked
+ * list of the entries in LRU order. An entry's index stays the same as long as it's in the map, so the caches
+ * address entries by it. Not thread-safe, the caches synchronize their access.
+ */
+class LongLruMap<V> {
+    static final int NO_ENTRY = -1;
+
+    private final int mCapacity;
+    private final long[] mKeys;
+    private final Object[] mValues;
+    private final int[] mSizes;
+    private final long[] mExpirationTimes;
+    private long mTotalSize;
+    private int mCount;
+
+    // The LRU list runs from the eldest entry (head) to the newest one (tail), free entries are chained by mNext
+    private final int[] mPrevious;
+    private final int[] mNext;
+    private int mHead = NO_ENTRY;
+    private int mTail = NO_ENTRY;
+    private int mFreeHead;
+
+    // Entry indices by key, twice as many slots as entries so probes stay short
+    private final int[] mTable;
+    private final int mTableMask;
+
+    LongLruMap(int capacity) {
+        mCapacity = capacity;
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mSizes = new int[capacity];
+        mExpirationTimes = new long[capacity];
+        mPrevious = new int[capacity];
+        mNext = new int[capacity];
+
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mTable = new int[tableSize];
+        mTableMask = tableSize - 1;
+        clear();
+    }
+
+    /** The number of entries */
+    int getCount() {
+        return mCount;
+    }
+
+    boolean isFull() {
+        return mCount == mCapacity;
+    }
+
+    /** The sum of the entries' sizes */
+    long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * @return The key's entry, or NO_ENTRY
+     */
+    int find(long key) {
+        return mTable[findSlot(key)];
+    }
+
+    long getKey(int entry) {
+        return mKeys[entry];
+    }
+
+    @SuppressWarnings("unchecked")
+    V getValue(int entry) {
+        return (V) mValues[entry];
+    }
+
+    int getSize(int entry) {
+        return mSizes[entry];
+    }
+
+    long getExpirationTime(int entry) {
+        return mExpirationTimes[entry];
+    }
+
+    /** The least recently used entry, or NO_ENTRY if the map is empty */
+    int getEldest() {
+        return mHead;
+    }
+
+    /** The entry used next after the given one, or NO_ENTRY if it's the newest */
+    int getNewer(int entry) {
+        return mNext[entry];
+    }
+
+    /** Marks the entry as the most recently used one */
+    void touch(int entry) {
+        unlink(entry);
+        linkAsNewest(entry);
+    }
+
+    /**
+     * Sets the key's entry as the most recently used one. A new key requires the map not to be full, the caller
+     * evicts an entry first.
+     * @return The previous value of the key, or null
+     */
+    V put(long key, V value, int size, long expirationTime) {
+        int slot = findSlot(key);
+        int entry = mTable[slot];
+        V previousValue = null;
+
+        if (entry != NO_ENTRY) {
+            previousValue = getValue(entry);
+            mTotalSize -= mSizes[entry];
+            unlink(entry);
+        } else {
+            if (mFreeHead == NO_ENTRY)
+                throw new IllegalStateException("The map is full");
+
+            entry = mFreeHead;
+            mFreeHead = mNext[entry];
+            mTable[slot] = entry;
+            mKeys[entry] = key;
+            mCount++;
+        }
+
+        mValues[entry] = value;
+        mSizes[entry] = size;
+        mExpirationTimes[entry] = expirationTime;
+        mTotalSize += size;
+        linkAsNewest(entry);
+        return previousValue;
+    }
+
+    /**
+     * @return The removed value of the key, or null if it wasn't in the map
+     */
+    V remove(long key) {
+        int slot = findSlot(key);
+        int entry = mTable[slot];
+        if (entry == NO_ENTRY)
+            return null;
+
+        V value = getValue(entry);
+        deleteSlot(slot);
+        unlink(entry);
+
+        mValues[entry] = null;
+        mTotalSize -= mSizes[entry];
+        mCount--;
+        mNext[entry] = mFreeHead;
+        mFreeHead = entry;
+        return value;
+    }
+
+    void clear() {
+        Arrays.fill(mTable, NO_ENTRY);
+        Arrays.fill(mValues, null);
+        for (int i = 0; i < mCapacity; i++) {
+            mNext[i] = (i + 1 < mCapacity) ? i + 1 : NO_ENTRY;
+        }
+        mFreeHead = 0;
+        mHead = NO_ENTRY;
+        mTail = NO_ENTRY;
+        mTotalSize = 0;
+        mCount = 0;
+    }
+
+    // The slot holding the key's entry, or the empty slot where it would be inserted
+    private int findSlot(long key) {
+        int slot = hash(key) & mTableMask;
+        while (mTable[slot] != NO_ENTRY && mKeys[mTable[slot]] != key) {
+            slot = (slot + 1) & mTableMask;
+        }
+        return slot;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    // Empties the slot, moving back the entries after it that could no longer be found by probing
+    private void deleteSlot(int slot) {
+        mTable[slot] = NO_ENTRY;
+
+        int emptySlot = slot;
+        int nextSlot = slot;
+        while (true) {
+            nextSlot = (nextSlot + 1) & mTableMask;
+            int entry = mTable[nextSlot];
+            if (entry == NO_ENTRY)
+                return;
+
+            // An entry stays if its home slot lies cyclically in (emptySlot, nextSlot]
+            int homeSlot = hash(mKeys[entry]) & mTableMask;
+            boolean stays = (emptySlot <= nextSlot)
+                    ? (emptySlot < homeSlot && homeSlot <= nextSlot)
+                    : (emptySlot < homeSlot || homeSlot <= nextSlot);
+            if (stays)
+                continue;
+
+            mTable[emptySlot] = entry;
+            mTable[nextSlot] = NO_ENTRY;
+            emptySlot = nextSlot;
+        }
+    }
+
+    private void unlink(int entry) {
+        int previous = mPrevious[entry];
+        int next = mNext[entry];
+
+        if (previous != NO_ENTRY)
+            mNext[previous] = next;
+        else
+            mHead = next;
+
+        if (next != NO_ENTRY)
+            mPrevious[next] = previous;
+        else
+            mTail = previous;
+    }
+
+    private void linkAsNewest(int entry) {
+        mPrevious[entry] = mTail;
+        mNext[entry] = NO_ENTRY;
+
+        if (mTail != NO_ENTRY)
+            mNext[mTail] = entry;
+        else
+            mHead = entry;
+        mTail = entry;
+    }
+}
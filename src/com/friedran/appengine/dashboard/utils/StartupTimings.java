@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import android.os.SystemClock;
+
+import com.google.analytics.tracking.android.Tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records when each stage of the startup completes, from the creation of the LoginActivity until the first chart
+ * is shown. Some stages run in parallel, so each one is measured from the start rather than from the previous one.
+ *
+ * Can be called from any thread. Marks outside of a startup (e.g. after the first chart) are ignored.
+ */
+public class StartupTimings {
+    public static final String STAGE_LOGIN_UI_INFLATED = "login_ui_inflated";
+    public static final String STAGE_AUTH_TOKEN = "auth_token";
+    public static final String STAGE_CONNECTION_WARMED = "connection_warmed";
+    public static final String STAGE_APPENGINE_LOGIN = "appengine_login";
+    public static final String STAGE_APPLICATIONS = "applications";
+    public static final String STAGE_DASHBOARD_CREATED = "dashboard_created";
+    public static final String STAGE_FIRST_CHART = "first_chart";
+
+    private static final String TIMING_CATEGORY = "startup";
+
+    private static long sStartMillis;
+    private static boolean sInProgress;
+    private static final List<String> sStages = new ArrayList<String>();
+    private static final List<Long> sStageMillis = new ArrayList<Long>();
+
+    public static synchronized void start() {
+        sStartMillis = SystemClock.elapsedRealtime();
+        sInProgress = true;
+        sStages.clear();
+        sStageMillis.clear();
+    }
+
+    /**
+     * Records the completion of the given stage, only its first completion counts.
+     */
+    public static synchronized void mark(String stage) {
+        if (!sInProgress || sStages.contains(stage))
+            return;
+
+        long elapsedMillis = SystemClock.elapsedRealtime() - sStartMillis;
+        sStages.add(stage);
+        sStageMillis.add(elapsedMillis);
+        LogUtils.i("StartupTimings", String.format("%s completed after %dms", stage, elapsedMillis));
+    }
+
+    /**
+     * Ends the startup and sends the timing of every stage that has completed.
+     */
+    public static synchronized void finish(Tracker tracker) {
+        if (!sInProgress)
+            return;
+
+        sInProgress = false;
+        for (int i = 0; i < sStages.size(); i++) {
+            tracker.sendTiming(TIMING_CATEGORY, sStageMillis.get(i), sStages.get(i), null);
+        }
+    }
+}
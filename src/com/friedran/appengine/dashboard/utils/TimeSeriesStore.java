@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The process-wide store of the points of every decoded chart, by (application, metric) rather than by time window.
+ *
+ * The time windows overlap - "30 mins" is the end of "3 hrs" and so on - so every chart fetched is merged into
+ * its metric's points, and a window can then be answered from points fetched for any other window that covers it
+ * finely enough. Points that fall out of the latest windows are kept, so history builds up beyond a single chart,
+ * up to MAX_POINTS per metric.
+ *
+ * The points are kept sorted by time in primitive columns: their timestamps, the step (resolution) of the chart they
+ * came from, and a column of values per series of the chart. All the methods are thread-safe.
+ *
+ * The timestamps are the approximations of {@link ChartDataDecoder}, not the dashboard's actual times. Each window's
+ * fetches share its step-aligned times, so a re-fetched chart replaces its own points rather than interleaving
+ * shifted copies of them. Charts of different windows may still be off from each other by up to a step of the
+ * coarser one, which is why a merged chart never replaces the finer points within its range, and its points that
+ * fall within half a step of a finer point are dropped.
+ */
+public class TimeSeriesStore {
+    private static final int MAX_METRICS = 128;
+    private static final int MAX_POINTS = 4096;
+
+    // A window is only answered locally if the points covering it are at least this dense, so it looks about as
+    // detailed as the chart that would have been fetched for it
+    private static final int MIN_POINTS_PER_WINDOW = 20;
+
+    private static TimeSeriesStore sInstance;
+
+    private final LinkedHashMap<Long, MetricPoints> mMetrics = new LinkedHashMap<Long, MetricPoints>(0, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MetricPoints> eldest) {
+            return size() > MAX_METRICS;
+        }
+    };
+
+    public static synchronized TimeSeriesStore getInstance() {
+        if (sInstance == null)
+            sInstance = new TimeSeriesStore();
+        return sInstance;
+    }
+
+    /**
+     * @param scopeID The application's scope ID, see {@link ChartCache#getScopeID}
+     */
+    public static long getKey(int scopeID, int metricID) {
+        return ((long) scopeID << 32) | (metricID & 0xffffffffL);
+    }
+
+    /**
+     * Merges a chart fetched for the given time window into its metric's points. Within the chart's time range its
+     * points replace the stored ones, except for stored points of a finer resolution, which are more detailed.
+     */
+    public synchronized void merge(long key, int windowID, ChartData data) {
+        if (data.getPointsCount() == 0)
+            return;
+
+        MetricPoints points = mMetrics.get(key);
+        if (points == null || points.mValues.length != data.getSeriesCount()) {
+            points = new MetricPoints(data.getSeriesCount());
+            mMetrics.put(key, points);
+        }
+        points.merge(windowID, data);
+    }
+
+    /**
+     * @return The given time window's chart, ending now, from the stored points - or null if they don't cover it
+     * finely enough, or if the points covering it are older than its time-to-live
+     */
+    public synchronized ChartData query(long key, int windowID, long nowMillis) {
+        MetricPoints points = mMetrics.get(key);
+        if (points == null || !points.covers(windowID, nowMillis))
+            return null;
+
+        return points.extract(nowMillis - ChartTimeWindows.getDurationMillis(windowID), nowMillis);
+    }
+
+    public synchronized void evictAll() {
+        mMetrics.clear();
+    }
+
+    private static class MetricPoints {
+        long[] mTimestamps = new long[0];
+        long[] mSteps = new long[0];
+        float[][] mValues;
+
+        // The series' colors and labels, of the latest chart
+        int[] mColors;
+        String[] mLabels;
+
+        // The time range and step of the latest chart of each time window, the step is 0 if it hasn't been fetched
+        final long[] mFetchStarts = new long[ChartTimeWindows.getWindowsCount()];
+        final long[] mFetchEnds = new long[ChartTimeWindows.getWindowsCount()];
+        final long[] mFetchSteps = new long[ChartTimeWindows.getWindowsCount()];
+
+        MetricPoints(int seriesCount) {
+            mValues = new float[seriesCount][0];
+        }
+
+        void merge(int windowID, ChartData data) {
+            long[] newTimestamps = data.getTimestamps();
+            int newCount = newTimestamps.length;
+            long start = newTimestamps[0];
+            long end = newTimestamps[newCount - 1];
+            long step = (newCount > 1) ? (end - start) / (newCount - 1) : ChartTimeWindows.getDurationMillis(windowID);
+            long halfStep = step / 2;
+
+            // The stored points that stay - outside of the chart's range, or finer than it
+            int oldCount = mTimestamps.length;
+            int[] kept = new int[oldCount];
+            int keptCount = 0;
+            for (int i = 0; i < oldCount; i++) {
+                long timestamp = mTimestamps[i];
+                boolean inRange = timestamp >= start - halfStep && timestamp <= end + halfStep;
+                if (!inRange || mSteps[i] < step)
+                    kept[keptCount++] = i;
+            }
+
+            // The new points that are added - those that no finer stored point already stands for
+            int[] added = new int[newCount];
+            int addedCount = 0;
+            int keptIndex = 0;
+            for (int j = 0; j < newCount; j++) {
+                long timestamp = newTimestamps[j];
+                while (keptIndex < keptCount && mTimestamps[kept[keptIndex]] < timestamp)
+                    keptIndex++;
+
+                boolean covered = (keptIndex < keptCount && mTimestamps[kept[keptIndex]] - timestamp < halfStep)
+                        || (keptIndex > 0 && timestamp - mTimestamps[kept[keptIndex - 1]] < halfStep);
+                if (!covered)
+                    added[addedCount++] = j;
+            }
+
+            // Both are sorted by time, so they're merged in a single pass. Only the latest MAX_POINTS are kept.
+            int mergedCount = keptCount + addedCount;
+            int skipCount = Math.max(0, mergedCount - MAX_POINTS);
+            int size = mergedCount - skipCount;
+
+            long[] timestamps = new long[size];
+            long[] steps = new long[size];
+            float[][] values = new float[mValues.length][size];
+
+            int k = 0;
+            int a = 0;
+            for (int i = 0; i < mergedCount; i++) {
+                boolean takeKept = a >= addedCount
+                        || (k < keptCount && mTimestamps[kept[k]] <= newTimestamps[added[a]]);
+                int target = i - skipCount;
+
+                if (takeKept) {
+                    int source = kept[k++];
+                    if (target < 0)
+                        continue;
+                    timestamps[target] = mTimestamps[source];
+                    steps[target] = mSteps[source];
+                    for (int s = 0; s < values.length; s++)
+                        values[s][target] = mValues[s][source];
+                } else {
+                    int source = added[a++];
+                    if (target < 0)
+                        continue;
+                    timestamps[target] = newTimestamps[source];
+                    steps[target] = step;
+                    for (int s = 0; s < values.length; s++)
+                        values[s][target] = data.getSeries(s)[source];
+                }
+            }
+
+            mTimestamps = timestamps;
+            mSteps = steps;
+            mValues = values;
+
+            mColors = new int[values.length];
+            mLabels = new String[values.length];
+            for (int s = 0; s < values.length; s++) {
+                mColors[s] = data.getColor(s);
+                mLabels[s] = data.getLabel(s);
+            }
+
+            mFetchStarts[windowID] = start;
+            mFetchEnds[windowID] = end;
+            mFetchSteps[windowID] = step;
+        }
+
+        // Whether the latest chart of any time window covers the given one up to now, finely and recently enough
+        boolean covers(int windowID, long nowMillis) {
+            long duration = ChartTimeWindows.getDurationMillis(windowID);
+            long oldestFetchEnd = nowMillis - ChartTimeWindows.getTimeToLiveMillis(windowID);
+
+            for (int i = 0; i < mFetchSteps.length; i++) {
+                long step = mFetchSteps[i];
+                if (step == 0 || mFetchEnds[i] < oldestFetchEnd || step * MIN_POINTS_PER_WINDOW > duration)
+                    continue;
+
+                // The fetched chart ended a bit before now, the window needs to start within its range all the same
+                if (mFetchStarts[i] <= mFetchEnds[i] - duration + step)
+                    return true;
+            }
+            return false;
+        }
+
+        ChartData extract(long fromMillis, long toMillis) {
+            int from = lowerBound(fromMillis);
+            int to = lowerBound(toMillis + 1);
+            int count = to - from;
+            if (count < 2)
+                return null;
+
+            long[] timestamps = Arrays.copyOfRange(mTimestamps, from, to);
+            float[][] values = new float[mValues.length][];
+            float minValue = 0;
+            float maxValue = Float.NEGATIVE_INFINITY;
+            for (int s = 0; s < values.length; s++) {
+                values[s] = Arrays.copyOfRange(mValues[s], from, to);
+                for (float value : values[s]) {
+                    if (value < minValue)
+                        minValue = value;
+                    if (value > maxValue)
+                        maxValue = value;
+                }
+            }
+
+            // Only missing values, or a flat line at 0, still get a range to be drawn in
+            if (!(maxValue > minValue))
+                maxValue = minValue + 1;
+
+            return new ChartData(timestamps, values, mColors, mLabels, minValue, maxValue);
+        }
+
+        // The index of the first point at or after the given time
+        private int lowerBound(long timestamp) {
+            int index = Arrays.binarySearch(mTimestamps, timestamp);
+            if (index < 0)
+                return -index - 1;
+
+            // Timestamps may repeat, the first of them is wanted
+            while (index > 0 && mTimestamps[index - 1] == timestamp)
+                index--;
+            return index;
+        }
+    }
+}
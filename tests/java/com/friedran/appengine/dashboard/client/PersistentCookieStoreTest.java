@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.client;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class PersistentCookieStoreTest extends InstrumentationTestCase {
+    private static final String STORE_ID = "PersistentCookieStoreTest";
+    private static final String CONCURRENT_STORE_ID = "PersistentCookieStoreTest.concurrent";
+    private static final long SAVE_TIMEOUT_MILLIS = 5000;
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+
+        // Cleared directly, a store's clear() would only remove the saved cookies later on
+        mContext.getSharedPreferences("cookies", Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    public void testConcurrentAddsAndReads() throws Exception {
+        final PersistentCookieStore store = new PersistentCookieStore(mContext, CONCURRENT_STORE_ID);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 4; i++) {
+                final int writer = i;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        for (int j = 0; j < 200; j++) {
+                            store.addCookie(createCookie("cookie" + writer + "_" + j, "value"));
+                        }
+                        return 0;
+                    }
+                }));
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        // Iterating a live view of the cookies would throw ConcurrentModificationException
+                        int count = 0;
+                        for (int j = 0; j < 200; j++) {
+                            for (Cookie cookie : store.getCookies()) {
+                                count += cookie.getName().length();
+                            }
+                        }
+                        return count;
+                    }
+                }));
+            }
+
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(800, store.getCookies().size());
+    }
+
+    public void testCookiesAreSavedAndCleared() throws Exception {
+        PersistentCookieStore store = new PersistentCookieStore(mContext, STORE_ID);
+        store.addCookie(createCookie("SACSID", "session"));
+        assertTrue(waitForStoredSession(true));
+
+        store.clear();
+        assertTrue(waitForStoredSession(false));
+    }
+
+    // Whether a new store, reading the saved cookies, gets to the expected session within the timeout
+    private boolean waitForStoredSession(boolean expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SAVE_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            PersistentCookieStore store = new PersistentCookieStore(mContext, STORE_ID);
+            if ((store.getValidCookie("SACSID") != null) == expected)
+                return true;
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    private static Cookie createCookie(String name, String value) {
+        BasicClientCookie cookie = new BasicClientCookie(name, value);
+        cookie.setDomain("appengine.google.com");
+        cookie.setPath("/");
+        cookie.setExpiryDate(new Date(System.currentTimeMillis() + 60 * 60 * 1000));
+        return cookie;
+    }
+}
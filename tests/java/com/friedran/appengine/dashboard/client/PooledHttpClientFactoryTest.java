@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.client;
+
+import android.test.InstrumentationTestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * Runs the pooled client against a local HTTPS server standing in for AppEngine, which counts the TLS connections
+ * it accepts.
+ */
+public class PooledHttpClientFactoryTest extends InstrumentationTestCase {
+    private static final String KEYSTORE_ASSET = "test_server.p12";
+    private static final char[] KEYSTORE_PASSWORD = "test_server".toCharArray();
+    private static final String SESSION_COOKIE = "SACSID=test-session";
+    private static final int CONNECTIONS_PER_ROUTE = 4;
+    private static final int CONCURRENT_REQUESTS = 20;
+
+    private KeyStore mKeyStore;
+    private TestServer mServer;
+    private DefaultHttpClient mHttpClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKeyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = getInstrumentation().getContext().getAssets().open(KEYSTORE_ASSET);
+        try {
+            mKeyStore.load(in, KEYSTORE_PASSWORD);
+        } finally {
+            in.close();
+        }
+
+        mServer = new TestServer(mKeyStore);
+        mServer.start();
+
+        SSLSocketFactory sslSocketFactory = new SSLSocketFactory(mKeyStore);
+        sslSocketFactory.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        mHttpClient = PooledHttpClientFactory.create(new ConnPerRouteBean(CONNECTIONS_PER_ROUTE), sslSocketFactory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHttpClient.getConnectionManager().shutdown();
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testSequentialRequestsReuseTheConnection() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertEquals("ok", execute("/echo"));
+        }
+
+        assertEquals(1, mServer.getAcceptedConnections());
+    }
+
+    public void testConcurrentRequestsShareTheSession() throws Exception {
+        BasicCookieStore cookieStore = new BasicCookieStore();
+        mHttpClient.setCookieStore(cookieStore);
+        execute("/login");
+        assertEquals(1, cookieStore.getCookies().size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+        try {
+            List<Future<String>> responses = new ArrayList<Future<String>>();
+            for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+                responses.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return execute("/echo");
+                    }
+                }));
+            }
+
+            for (Future<String> response : responses) {
+                assertEquals(SESSION_COOKIE, response.get());
+            }
+            assertEquals(1, cookieStore.getCookies().size());
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue("Opened " + mServer.getAcceptedConnections() + " connections",
+                mServer.getAcceptedConnections() <= CONNECTIONS_PER_ROUTE);
+    }
+
+    private String execute(String path) throws IOException {
+        HttpResponse response = mHttpClient.execute(
+                new HttpGet("https://127.0.0.1:" + mServer.getPort() + path));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    /**
+     * Serves HTTP/1.1 keep-alive connections: /login sets the session cookie, /echo returns the request's cookies.
+     */
+    private static class TestServer extends Thread {
+        private final SSLServerSocket mServerSocket;
+        private final AtomicInteger mAcceptedConnections = new AtomicInteger();
+        private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+        TestServer(KeyStore keyStore) throws Exception {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                    KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+            mServerSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(
+                    0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        int getAcceptedConnections() {
+            return mAcceptedConnections.get();
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) {
+                    socket.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+
+                mAcceptedConnections.incrementAndGet();
+                mSockets.add(socket);
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // The client or the test closed the connection
+                        }
+                    }
+                }.start();
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null) {
+                String path = requestLine.split(" ")[1];
+                String cookie = "";
+                String header;
+                while ((header = reader.readLine()) != null && header.length() > 0) {
+                    if (header.regionMatches(true, 0, "Cookie:", 0, 7))
+                        cookie = header.substring(7).trim();
+                }
+
+                String body;
+                String extraHeaders = "";
+                if (path.equals("/login")) {
+                    body = "ok";
+                    extraHeaders = "Set-Cookie: " + SESSION_COOKIE + "; Path=/; Secure\r\n";
+                } else {
+                    body = cookie.length() > 0 ? cookie : "ok";
+                }
+
+                byte[] bodyBytes = body.getBytes("US-ASCII");
+                String headers = "HTTP/1.1 200 OK\r\n" +
+                        "Content-Type: text/plain\r\n" +
+                        "Content-Length: " + bodyBytes.length + "\r\n" +
+                        "Connection: keep-alive\r\n" +
+                        extraHeaders + "\r\n";
+                out.write(headers.getBytes("US-ASCII"));
+                out.write(bodyBytes);
+                out.flush();
+            }
+            socket.close();
+        }
+    }
+}
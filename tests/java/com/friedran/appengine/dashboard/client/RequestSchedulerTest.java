@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.client;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+public class RequestSchedulerTest extends TestCase {
+    private static final String HOST = "appengine.google.com";
+    private static final String OTHER_HOST = "chart.googleapis.com";
+
+    private ManualExecutor mExecutor;
+    private ManualHandler mRetryHandler;
+    private RequestScheduler mScheduler;
+    private List<String> mStarted;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new ManualExecutor();
+        mRetryHandler = new ManualHandler();
+        mScheduler = new RequestScheduler(mExecutor, mRetryHandler, 2);
+        mStarted = new ArrayList<String>();
+    }
+
+    public void testLimitsRequestsPerHost() {
+        submit(HOST, "a");
+        submit(HOST, "b");
+        submit(HOST, "c");
+        submit(OTHER_HOST, "d");
+        assertEquals(3, mExecutor.getPendingCount());
+
+        mExecutor.runAll();
+        assertEquals("[a, b, d, c]", mStarted.toString());
+    }
+
+    public void testRaisedLimitDispatchesWaitingRequests() {
+        submit(HOST, "a");
+        submit(HOST, "b");
+        submit(HOST, "c");
+        assertEquals(2, mExecutor.getPendingCount());
+
+        mScheduler.setMaxRequestsPerHost(3);
+        assertEquals(3, mExecutor.getPendingCount());
+    }
+
+    public void testDispatchesByPriorityThenOrder() {
+        submit(HOST, "running1");
+        submit(HOST, "running2");
+        submit(HOST, "deferred", RequestScheduler.PRIORITY_DEFERRED);
+        submit(HOST, "near1", RequestScheduler.PRIORITY_NEAR);
+        submit(HOST, "visible", RequestScheduler.PRIORITY_VISIBLE);
+        submit(HOST, "near2", RequestScheduler.PRIORITY_NEAR);
+
+        mExecutor.runAll();
+        assertEquals("[running1, running2, visible, near1, near2, deferred]", mStarted.toString());
+    }
+
+    public void testReprioritizeWaitingRequests() {
+        submit(HOST, "running1");
+        submit(HOST, "running2");
+        submit(HOST, "first");
+        RequestScheduler.Ticket second = submit(HOST, "second");
+
+        second.setPriority(RequestScheduler.PRIORITY_VISIBLE);
+
+        mExecutor.runAll();
+        assertEquals("[running1, running2, second, first]", mStarted.toString());
+    }
+
+    public void testCancelWaitingRequests() {
+        submit(HOST, "running1");
+        submit(HOST, "running2");
+        RequestScheduler.Ticket waiting = submit(HOST, "waiting");
+        RequestScheduler.Ticket cancelled = submit(HOST, "cancelled");
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+
+        mExecutor.runAll();
+        assertEquals("[running1, running2, waiting]", mStarted.toString());
+        assertFalse(waiting.cancel());
+    }
+
+    public void testRejectedRequestsAreRetried() {
+        mExecutor.mRejecting = true;
+        submit(HOST, "a");
+        submit(OTHER_HOST, "b");
+        assertEquals(0, mExecutor.getPendingCount());
+
+        // Another submission retries the waiting requests once the executor accepts them again, taking turns
+        mExecutor.mRejecting = false;
+        submit(HOST, "c");
+        assertEquals(3, mExecutor.getPendingCount());
+
+        mExecutor.runAll();
+        assertEquals("[a, b, c]", mStarted.toString());
+    }
+
+    public void testRejectedRequestsAreRetriedWhenNothingIsRunning() {
+        mExecutor.mRejecting = true;
+        submit(HOST, "a");
+        assertEquals(1, mRetryHandler.mPosted.size());
+
+        // Still rejected, so it's retried again later
+        mRetryHandler.runNext();
+        assertEquals(1, mRetryHandler.mPosted.size());
+        assertEquals(0, mExecutor.getPendingCount());
+
+        mExecutor.mRejecting = false;
+        mRetryHandler.runNext();
+        assertEquals(0, mRetryHandler.mPosted.size());
+        mExecutor.runAll();
+        assertEquals("[a]", mStarted.toString());
+    }
+
+    public void testRejectedRequestsWaitForRunningOnes() {
+        submit(HOST, "a");
+        mExecutor.mRejecting = true;
+        submit(OTHER_HOST, "b");
+        assertEquals(0, mRetryHandler.mPosted.size());
+
+        mExecutor.mRejecting = false;
+        mExecutor.runAll();
+        assertEquals("[a, b]", mStarted.toString());
+    }
+
+    public void testHostsTakeTurnsForTheExecutor() {
+        mExecutor.mRejecting = true;
+        submit(HOST, "h1");
+        submit(HOST, "h2");
+        submit(HOST, "h3");
+        submit(OTHER_HOST, "o1");
+        submit(OTHER_HOST, "o2");
+
+        // The executor has room for a single request at a time, which goes to each host in turn
+        mExecutor.mRejecting = false;
+        mExecutor.mCapacity = 1;
+        mRetryHandler.runNext();
+        mExecutor.runAll();
+        assertEquals("[h1, o1, h2, o2, h3]", mStarted.toString());
+    }
+
+    private RequestScheduler.Ticket submit(String host, String name) {
+        return submit(host, name, RequestScheduler.PRIORITY_DEFAULT);
+    }
+
+    private RequestScheduler.Ticket submit(String host, final String name, int priority) {
+        RequestScheduler.Ticket ticket = mScheduler.newTicket(host, priority);
+        ticket.execute(new Runnable() {
+            @Override
+            public void run() {
+                mStarted.add(name);
+            }
+        });
+        return ticket;
+    }
+
+    /**
+     * Runs the commands only when the test asks, in the order they were executed.
+     */
+    private static class ManualExecutor implements Executor {
+        final LinkedList<Runnable> mPending = new LinkedList<Runnable>();
+        boolean mRejecting;
+        int mCapacity = Integer.MAX_VALUE;
+
+        @Override
+        public void execute(Runnable command) {
+            if (mRejecting || mPending.size() >= mCapacity)
+                throw new RejectedExecutionException();
+            mPending.add(command);
+        }
+
+        int getPendingCount() {
+            return mPending.size();
+        }
+
+        void runNext() {
+            mPending.removeFirst().run();
+        }
+
+        void runAll() {
+            while (!mPending.isEmpty())
+                runNext();
+        }
+    }
+
+    /**
+     * Keeps the posted retries instead of running them, until the test asks.
+     */
+    private static class ManualHandler extends Handler {
+        final LinkedList<Runnable> mPosted = new LinkedList<Runnable>();
+
+        ManualHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mPosted.add(msg.getCallback());
+            return true;
+        }
+
+        void runNext() {
+            mPosted.removeFirst().run();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class AppEngineParserUtilsTest extends TestCase {
+    private static final String CHART_URL = "https://chart.googleapis.com/chart?cht=lc&chd=s:AB&chs=300x120";
+
+    public void testGetChartUrl() throws IOException {
+        String response = "{\"timestamp\": 1, \"labels\": [\"a\", {\"b\": null}], \"chart_url\": \"" +
+                "https://chart.googleapis.com/chart?cht=lc\\u0026chd=s:AB\\u0026chs=300x120\", \"ignored\": true}";
+
+        assertEquals(CHART_URL, AppEngineParserUtils.getChartUrl(toStream(response)));
+    }
+
+    public void testGetChartUrlStopsAtTheUrl() throws IOException {
+        // Whatever follows the URL isn't read, so it doesn't have to be valid
+        String response = "{\"chart_url\": \"" + CHART_URL + "\", \"truncated\": [1, 2,";
+
+        assertEquals(CHART_URL, AppEngineParserUtils.getChartUrl(toStream(response)));
+    }
+
+    public void testGetChartUrlMissing() {
+        try {
+            AppEngineParserUtils.getChartUrl(toStream("{\"chart_url\": null, \"other\": \"x\"}"));
+            fail("Expected a response without a chart_url to throw");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testGetApplicationIDsOfLargePages() throws IOException {
+        for (int count : new int[] {0, 10, 100, 1000}) {
+            StringBuilder page = new StringBuilder("<html><body><table>");
+            ArrayList<String> expected = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                String id = (i % 10 == 0) ? "example.com:app-" + i : "app-" + i;
+                expected.add(id);
+                page.append("<tr><td><a class=\"app\"\n   href=\"/dashboard?&app_id=s~").append(id)
+                        .append("\">").append(id).append("</a></td><td><a href=\"/logs?app_id=s~").append(id)
+                        .append("\">Logs</a></td></tr>");
+            }
+            page.append("</table></body></html>");
+
+            assertEquals(expected, AppEngineParserUtils.getApplicationIDs(toStream(page.toString())));
+        }
+    }
+
+    public void testGetApplicationIDsIgnoresOtherTagsAndAttributes() throws IOException {
+        String page = "<abbr href=\"/dashboard?&app_id=s~abbr\">" +
+                "<a data-href=\"/dashboard?&app_id=s~data\">" +
+                "<p>href=\"/dashboard?&app_id=s~text\"</p>" +
+                "<a title=\"x\" href=\"/dashboard?&app_id=s~first\" href=\"/dashboard?&app_id=s~last\">" +
+                "<<a href=\"/dashboard?&app_id=s~nested\">" +
+                "<a href=\"/dashboard?&app_id=s~unterminated";
+
+        assertEquals(Arrays.asList("last", "nested"), AppEngineParserUtils.getApplicationIDs(toStream(page)));
+    }
+
+    private static InputStream toStream(String s) throws IOException {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+}
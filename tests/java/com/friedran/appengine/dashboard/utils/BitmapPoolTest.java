@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import android.graphics.Bitmap;
+
+import junit.framework.TestCase;
+
+public class BitmapPoolTest extends TestCase {
+    private static final int WIDTH = 30;
+    private static final int HEIGHT = 20;
+    private static final int BITMAP_SIZE_BYTES = WIDTH * HEIGHT * 4;
+
+    public void testReusesBitmapsOfTheSameDimensions() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_SIZE_BYTES);
+        Bitmap bitmap = createBitmap(WIDTH, HEIGHT);
+        pool.put(bitmap);
+
+        assertNull(pool.get(WIDTH, HEIGHT + 1, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(WIDTH, HEIGHT, Bitmap.Config.RGB_565));
+        assertSame(bitmap, pool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testIgnoresUnusableBitmaps() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_SIZE_BYTES);
+        Bitmap recycled = createBitmap(WIDTH, HEIGHT);
+        recycled.recycle();
+        pool.put(recycled);
+        pool.put(createBitmap(WIDTH, HEIGHT).copy(Bitmap.Config.ARGB_8888, false));
+        pool.put(createBitmap(WIDTH * 4, HEIGHT * 4));
+        pool.put(null);
+
+        assertNull(pool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(WIDTH * 4, HEIGHT * 4, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testTrimsTheMostCrowdedDimensionsFirst() {
+        BitmapPool pool = new BitmapPool(3 * BITMAP_SIZE_BYTES);
+        Bitmap other = createBitmap(HEIGHT, WIDTH);
+        Bitmap oldest = createBitmap(WIDTH, HEIGHT);
+        Bitmap newer = createBitmap(WIDTH, HEIGHT);
+        Bitmap newest = createBitmap(WIDTH, HEIGHT);
+        pool.put(other);
+        pool.put(oldest);
+        pool.put(newer);
+        pool.put(newest);
+
+        assertSame(other, pool.get(HEIGHT, WIDTH, Bitmap.Config.ARGB_8888));
+        assertSame(newest, pool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        assertSame(newer, pool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testClear() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_SIZE_BYTES);
+        pool.put(createBitmap(WIDTH, HEIGHT));
+        pool.clear();
+
+        assertNull(pool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    private static Bitmap createBitmap(int width, int height) {
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import android.graphics.Bitmap;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ChartCacheTest extends TestCase {
+    private static final int WIDTH = 30;
+    private static final int HEIGHT = 20;
+    private static final int BITMAP_SIZE_BYTES = WIDTH * HEIGHT * 4;
+    private static final long TIME_TO_LIVE_MILLIS = 60 * 1000;
+
+    private BitmapPool mPool;
+    private ChartCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new BitmapPool(10 * BITMAP_SIZE_BYTES);
+        mCache = new ChartCache(10 * BITMAP_SIZE_BYTES, mPool);
+    }
+
+    public void testEveryCheckerKeepsItsBitmapsFromThePool() {
+        final Bitmap first = createBitmap();
+        final Bitmap second = createBitmap();
+        Bitmap unused = createBitmap();
+        mCache.addBitmapsInUseChecker(new ChartCache.BitmapsInUseChecker() {
+            @Override
+            public boolean isInUse(Bitmap bitmap) {
+                return bitmap == first;
+            }
+        });
+        mCache.addBitmapsInUseChecker(new ChartCache.BitmapsInUseChecker() {
+            @Override
+            public boolean isInUse(Bitmap bitmap) {
+                return bitmap == second;
+            }
+        });
+
+        mCache.put(ChartCache.getKey(0, 0, 0), first, TIME_TO_LIVE_MILLIS);
+        mCache.put(ChartCache.getKey(1, 0, 0), second, TIME_TO_LIVE_MILLIS);
+        mCache.put(ChartCache.getKey(0, 1, 0), unused, TIME_TO_LIVE_MILLIS);
+        mCache.evictAll();
+
+        assertSame(unused, mPool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        assertNull(mPool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testRemovedCheckersAreNoLongerConsulted() {
+        final Bitmap bitmap = createBitmap();
+        ChartCache.BitmapsInUseChecker checker = new ChartCache.BitmapsInUseChecker() {
+            @Override
+            public boolean isInUse(Bitmap candidate) {
+                return candidate == bitmap;
+            }
+        };
+        mCache.addBitmapsInUseChecker(checker);
+        mCache.removeBitmapsInUseChecker(checker);
+
+        mCache.put(ChartCache.getKey(0, 0, 0), bitmap, TIME_TO_LIVE_MILLIS);
+        mCache.remove(ChartCache.getKey(0, 0, 0));
+
+        assertSame(bitmap, mPool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testCheckersAreCalledWithoutTheCacheLock() throws Exception {
+        final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            // Would deadlock if the checker were called while the cache is locked
+            mCache.addBitmapsInUseChecker(new ChartCache.BitmapsInUseChecker() {
+                @Override
+                public boolean isInUse(Bitmap bitmap) {
+                    try {
+                        return otherThread.submit(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() {
+                                return mCache.isFresh(ChartCache.getKey(0, 1, 0));
+                            }
+                        }).get(5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+
+            mCache.put(ChartCache.getKey(0, 0, 0), createBitmap(), TIME_TO_LIVE_MILLIS);
+            mCache.put(ChartCache.getKey(0, 0, 0), createBitmap(), TIME_TO_LIVE_MILLIS);
+
+            assertNotNull(mPool.get(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        } finally {
+            otherThread.shutdown();
+        }
+    }
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+}
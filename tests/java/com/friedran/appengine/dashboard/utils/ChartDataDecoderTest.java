@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import junit.framework.TestCase;
+
+public class ChartDataDecoderTest extends TestCase {
+    private static final String CHART_URL_PREFIX = "https://chart.googleapis.com/chart?cht=lc&chs=300x120";
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long DURATION_MILLIS = 30 * MINUTE_MILLIS;
+
+    public void testSimpleEncoding() {
+        ChartData data = decode("&chxt=x,y&chxr=1,0,61&chd=s:A9_");
+
+        assertEquals(3, data.getPointsCount());
+        assertEquals(0, data.getMinValue(), 0);
+        assertEquals(61, data.getMaxValue(), 0);
+        assertEquals(0, data.getSeries(0)[0], 1e-4);
+        assertEquals(61, data.getSeries(0)[1], 1e-4);
+        assertTrue(Float.isNaN(data.getSeries(0)[2]));
+    }
+
+    public void testExtendedEncodingUsesTheValueAxisRange() {
+        // "AA" is 0, ".." is the maximum (4095) and "gA" (32 * 64) is about half of it
+        ChartData data = decode("&chxt=x,y&chxr=0,0,10|1,100,200&chd=e:AA..gA__");
+
+        assertEquals(100, data.getMinValue(), 0);
+        assertEquals(200, data.getMaxValue(), 0);
+        assertEquals(100, data.getSeries(0)[0], 1e-3);
+        assertEquals(200, data.getSeries(0)[1], 1e-3);
+        assertEquals(100 + 100f * 2048 / 4095, data.getSeries(0)[2], 1e-3);
+        assertTrue(Float.isNaN(data.getSeries(0)[3]));
+    }
+
+    public void testTextEncodingWithCustomScale() {
+        ChartData data = decode("&chd=t:1.5,-2,_,4|7,8,9,10&chds=-5,20&chco=ff0000,00ff0080&chdl=First|Second");
+
+        assertEquals(2, data.getSeriesCount());
+        assertEquals(-5, data.getMinValue(), 0);
+        assertEquals(20, data.getMaxValue(), 0);
+        assertEquals(1.5f, data.getSeries(0)[0], 0);
+        assertEquals(-2, data.getSeries(0)[1], 0);
+        assertTrue(Float.isNaN(data.getSeries(0)[2]));
+        assertEquals(10, data.getSeries(1)[3], 0);
+        assertEquals(0xffff0000, data.getColor(0));
+        assertEquals(0x8000ff00, data.getColor(1));
+        assertEquals("Second", data.getLabel(1));
+    }
+
+    public void testTextEncodingWithoutScaleMarksNegativeAsMissing() {
+        ChartData data = decode("&chd=t:5,-1,50");
+
+        assertEquals(0, data.getMinValue(), 0);
+        assertEquals(100, data.getMaxValue(), 0);
+        assertTrue(Float.isNaN(data.getSeries(0)[1]));
+        assertEquals(50, data.getSeries(0)[2], 0);
+    }
+
+    public void testShorterSeriesArePadded() {
+        ChartData data = decode("&chd=s:AB,ABCD");
+
+        assertEquals(4, data.getPointsCount());
+        assertEquals(4, data.getSeries(0).length);
+        assertTrue(Float.isNaN(data.getSeries(0)[3]));
+    }
+
+    public void testUnsupportedCharts() {
+        assertNull(ChartDataDecoder.decode("https://chart.googleapis.com/chart?cht=bvs&chd=s:AB", 0, DURATION_MILLIS));
+        assertNull(ChartDataDecoder.decode(CHART_URL_PREFIX, 0, DURATION_MILLIS));
+        assertNull(decode("&chd=x:AB"));
+        assertNull(decode("&chd=e:ABC"));
+    }
+
+    public void testTimestampsAreAlignedToTheStep() {
+        // 31 points over 30 minutes are a minute apart
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < 31; i++) {
+            values.append('A');
+        }
+        String url = CHART_URL_PREFIX + "&chd=s:" + values;
+        long endTimeMillis = 1000 * MINUTE_MILLIS + 25 * 1000;
+
+        long[] timestamps = ChartDataDecoder.decode(url, endTimeMillis, DURATION_MILLIS).getTimestamps();
+        assertEquals(1000 * MINUTE_MILLIS, timestamps[30]);
+        assertEquals(970 * MINUTE_MILLIS, timestamps[0]);
+        for (int i = 1; i < timestamps.length; i++) {
+            assertEquals(MINUTE_MILLIS, timestamps[i] - timestamps[i - 1]);
+        }
+
+        // A later fetch within the same step has the same times, a step later they're shifted by exactly a step
+        long[] sameStepTimestamps = ChartDataDecoder.decode(url, endTimeMillis + 30 * 1000, DURATION_MILLIS)
+                .getTimestamps();
+        assertEquals(timestamps[0], sameStepTimestamps[0]);
+        long[] nextStepTimestamps = ChartDataDecoder.decode(url, endTimeMillis + MINUTE_MILLIS, DURATION_MILLIS)
+                .getTimestamps();
+        assertEquals(timestamps[1], nextStepTimestamps[0]);
+    }
+
+    private static ChartData decode(String parameters) {
+        return ChartDataDecoder.decode(CHART_URL_PREFIX + parameters, System.currentTimeMillis(), DURATION_MILLIS);
+    }
+}
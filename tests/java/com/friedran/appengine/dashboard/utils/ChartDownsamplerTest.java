@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ChartDownsamplerTest extends TestCase {
+    private static final long STEP_MILLIS = 60 * 1000;
+
+    public void testSmallChartIsUnchanged() {
+        ChartData data = createChart(new float[] {1, 2, 3, 4});
+
+        assertSame(data, ChartDownsampler.downsample(data, 4));
+        assertSame(data, ChartDownsampler.downsample(data, 100));
+        assertSame(data, ChartDownsampler.downsample(data, 2));
+    }
+
+    public void testKeepsTheEndsAndTheRange() {
+        ChartData data = createChart(randomValues(1000));
+        ChartData downsampled = ChartDownsampler.downsample(data, 100);
+
+        assertEquals(100, downsampled.getPointsCount());
+        assertEquals(data.getTimestamps()[0], downsampled.getTimestamps()[0]);
+        assertEquals(data.getTimestamps()[999], downsampled.getTimestamps()[99]);
+        assertEquals(data.getSeries(0)[999], downsampled.getSeries(0)[99], 0);
+        assertEquals(data.getMinValue(), downsampled.getMinValue(), 0);
+        assertEquals(data.getMaxValue(), downsampled.getMaxValue(), 0);
+
+        long[] timestamps = downsampled.getTimestamps();
+        for (int i = 1; i < timestamps.length; i++) {
+            assertTrue(timestamps[i] > timestamps[i - 1]);
+        }
+    }
+
+    public void testKeepsSpikes() {
+        float[] values = new float[1000];
+        values[123] = 100;
+        values[777] = -100;
+
+        ChartData downsampled = ChartDownsampler.downsample(createChart(values), 50);
+        boolean foundPeak = false;
+        boolean foundDip = false;
+        for (float value : downsampled.getSeries(0)) {
+            foundPeak |= (value == 100);
+            foundDip |= (value == -100);
+        }
+        assertTrue(foundPeak);
+        assertTrue(foundDip);
+    }
+
+    public void testKeepsGaps() {
+        float[] values = randomValues(1000);
+        values[500] = Float.NaN;
+
+        ChartData downsampled = ChartDownsampler.downsample(createChart(values), 50);
+        boolean foundGap = false;
+        for (float value : downsampled.getSeries(0)) {
+            foundGap |= Float.isNaN(value);
+        }
+        assertTrue(foundGap);
+    }
+
+    public void testDownsampledChartIsMemoized() {
+        ChartData data = createChart(randomValues(1000));
+        assertNull(data.peekDownsampled(100));
+
+        ChartData downsampled = data.getDownsampled(100);
+        assertSame(downsampled, data.peekDownsampled(100));
+        assertSame(downsampled, data.getDownsampled(100));
+        assertNull(data.peekDownsampled(200));
+    }
+
+    private static float[] randomValues(int count) {
+        Random random = new Random(42);
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextFloat() * 10;
+        }
+        return values;
+    }
+
+    private static ChartData createChart(float[] values) {
+        long[] timestamps = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            timestamps[i] = STEP_MILLIS * i;
+        }
+
+        return new ChartData(timestamps, new float[][] {values}, new int[] {0xffff9900}, new String[1], -100, 100);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ChartStatisticsTest extends TestCase {
+    public void testFewValuesAreExact() {
+        ChartStatistics statistics = ChartStatistics.compute(new float[] {3, 1, Float.NaN, 4, 2});
+
+        assertEquals(4, statistics.getCount());
+        assertEquals(1, statistics.getMin(), 0);
+        assertEquals(4, statistics.getMax(), 0);
+        assertEquals(2.5f, statistics.getMean(), 1e-6f);
+        assertEquals(2, statistics.getLast(), 0);
+        assertEquals(4, statistics.getPercentile95(), 0);
+    }
+
+    public void testMissingValuesAreSkipped() {
+        ChartStatistics statistics = ChartStatistics.compute(new float[] {Float.NaN, 5, Float.NaN});
+
+        assertEquals(1, statistics.getCount());
+        assertEquals(5, statistics.getMean(), 0);
+        assertEquals(5, statistics.getLast(), 0);
+        assertEquals(5, statistics.getPercentile95(), 0);
+    }
+
+    public void testAllMissing() {
+        assertNull(ChartStatistics.compute(new float[] {Float.NaN, Float.NaN}));
+        assertNull(ChartStatistics.compute(new float[0]));
+    }
+
+    public void testPercentileEstimateOfUniformValues() {
+        assertPercentileEstimate(new Random(42), false, 0.01f);
+    }
+
+    public void testPercentileEstimateOfNormalValues() {
+        assertPercentileEstimate(new Random(7), true, 0.02f);
+    }
+
+    public void testPercentileEstimateOfSortedValues() {
+        float[] values = new float[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+
+        ChartStatistics statistics = ChartStatistics.compute(values);
+        assertEquals(949, statistics.getPercentile95(), 10);
+        assertEquals(499.5f, statistics.getMean(), 1e-3f);
+    }
+
+    // Compares the estimate to the exact nearest-rank percentile, relative to the values' range
+    private static void assertPercentileEstimate(Random random, boolean normal, float tolerance) {
+        float[] values = new float[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = normal ? (float) random.nextGaussian() : random.nextFloat();
+        }
+
+        ChartStatistics statistics = ChartStatistics.compute(values);
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+        float exact = sorted[(int) Math.ceil(0.95 * sorted.length) - 1];
+        float range = sorted[sorted.length - 1] - sorted[0];
+
+        assertEquals(exact, statistics.getPercentile95(), tolerance * range);
+        assertEquals(sorted[0], statistics.getMin(), 0);
+        assertEquals(sorted[sorted.length - 1], statistics.getMax(), 0);
+    }
+}
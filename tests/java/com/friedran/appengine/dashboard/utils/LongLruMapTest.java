@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class LongLruMapTest extends TestCase {
+    public void testPutFindAndRemove() {
+        LongLruMap<String> map = new LongLruMap<String>(4);
+        assertNull(map.put(1, "a", 10, 100));
+        assertNull(map.put(Long.MIN_VALUE, "b", 20, 200));
+
+        int entry = map.find(Long.MIN_VALUE);
+        assertEquals("b", map.getValue(entry));
+        assertEquals(Long.MIN_VALUE, map.getKey(entry));
+        assertEquals(20, map.getSize(entry));
+        assertEquals(200, map.getExpirationTime(entry));
+        assertEquals(30, map.getTotalSize());
+
+        assertEquals("a", map.put(1, "c", 5, 300));
+        assertEquals(25, map.getTotalSize());
+        assertEquals(2, map.getCount());
+
+        assertEquals("c", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(LongLruMap.NO_ENTRY, map.find(1));
+        assertEquals(20, map.getTotalSize());
+    }
+
+    public void testLeastRecentlyUsedOrder() {
+        LongLruMap<String> map = new LongLruMap<String>(3);
+        map.put(1, "a", 1, 0);
+        map.put(2, "b", 1, 0);
+        map.put(3, "c", 1, 0);
+        assertTrue(map.isFull());
+
+        map.touch(map.find(1));
+        assertEquals(2, map.getKey(map.getEldest()));
+
+        int entry = map.getEldest();
+        assertEquals(3, map.getKey(entry = map.getNewer(entry)));
+        assertEquals(1, map.getKey(entry = map.getNewer(entry)));
+        assertEquals(LongLruMap.NO_ENTRY, map.getNewer(entry));
+    }
+
+    public void testPutWhenFull() {
+        LongLruMap<String> map = new LongLruMap<String>(1);
+        map.put(1, "a", 1, 0);
+        try {
+            map.put(2, "b", 1, 0);
+            fail("Expected the full map to throw");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        map.remove(map.getKey(map.getEldest()));
+        map.put(2, "b", 1, 0);
+        assertEquals("b", map.getValue(map.find(2)));
+    }
+
+    public void testClear() {
+        LongLruMap<String> map = new LongLruMap<String>(2);
+        map.put(1, "a", 1, 0);
+        map.put(2, "b", 1, 0);
+        map.clear();
+
+        assertEquals(0, map.getCount());
+        assertEquals(0, map.getTotalSize());
+        assertEquals(LongLruMap.NO_ENTRY, map.getEldest());
+        assertEquals(LongLruMap.NO_ENTRY, map.find(1));
+    }
+
+    public void testMatchesLinkedHashMap() {
+        final int capacity = 64;
+        LongLruMap<Long> map = new LongLruMap<Long>(capacity);
+        LinkedHashMap<Long, Long> expected = new LinkedHashMap<Long, Long>(0, 0.75f, true);
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            // Keys that differ in their high bits too, like the chart caches' keys
+            long key = ((long) random.nextInt(20) << 32) | random.nextInt(10);
+            int operation = random.nextInt(3);
+
+            if (operation == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else if (operation == 1) {
+                int entry = map.find(key);
+                assertEquals(expected.get(key), (entry != LongLruMap.NO_ENTRY) ? map.getValue(entry) : null);
+                if (entry != LongLruMap.NO_ENTRY)
+                    map.touch(entry);
+            } else {
+                if (map.find(key) == LongLruMap.NO_ENTRY && map.isFull()) {
+                    long eldest = map.getKey(map.getEldest());
+                    assertEquals(expected.keySet().iterator().next().longValue(), eldest);
+                    expected.remove(eldest);
+                    map.remove(eldest);
+                }
+                assertEquals(expected.put(key, (long) i), map.put(key, (long) i, 1, 0));
+            }
+
+            assertEquals(expected.size(), map.getCount());
+            assertEquals(expected.size(), map.getTotalSize());
+        }
+
+        List<Long> keys = new ArrayList<Long>();
+        for (int entry = map.getEldest(); entry != LongLruMap.NO_ENTRY; entry = map.getNewer(entry)) {
+            keys.add(map.getKey(entry));
+        }
+        assertEquals(new ArrayList<Long>(expected.keySet()), keys);
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.getValue(map.find(entry.getKey())));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.friedran.appengine.dashboard.utils;
+
+import junit.framework.TestCase;
+
+public class TimeSeriesStoreTest extends TestCase {
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long KEY = TimeSeriesStore.getKey(1, 2);
+
+    // Window IDs of ChartTimeWindows
+    private static final int WINDOW_30_MINS = 0;
+    private static final int WINDOW_3_HOURS = 1;
+    private static final int WINDOW_6_HOURS = 2;
+
+    private static final long NOW = 1000 * HOUR_MILLIS;
+
+    private TimeSeriesStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new TimeSeriesStore();
+    }
+
+    public void testFinerChartAnswersShorterWindows() {
+        mStore.merge(KEY, WINDOW_3_HOURS, createChart(NOW, 3 * HOUR_MILLIS, MINUTE_MILLIS, 0));
+
+        ChartData data = mStore.query(KEY, WINDOW_30_MINS, NOW);
+        assertEquals(31, data.getPointsCount());
+        assertEquals(NOW - 30 * MINUTE_MILLIS, data.getTimestamps()[0]);
+        assertEquals(NOW, data.getTimestamps()[30]);
+        assertEquals(180, data.getSeries(0)[30], 0);
+
+        assertEquals(181, mStore.query(KEY, WINDOW_3_HOURS, NOW).getPointsCount());
+    }
+
+    public void testLongerOrExpiredWindowsAreNotAnswered() {
+        mStore.merge(KEY, WINDOW_3_HOURS, createChart(NOW, 3 * HOUR_MILLIS, MINUTE_MILLIS, 0));
+
+        assertNull(mStore.query(KEY, WINDOW_6_HOURS, NOW));
+        assertNull(mStore.query(KEY, WINDOW_30_MINS, NOW + 2 * MINUTE_MILLIS));
+        assertNull(mStore.query(TimeSeriesStore.getKey(1, 3), WINDOW_30_MINS, NOW));
+    }
+
+    public void testCoarserChartKeepsTheFinerPoints() {
+        mStore.merge(KEY, WINDOW_3_HOURS, createChart(NOW, 3 * HOUR_MILLIS, MINUTE_MILLIS, 0));
+        mStore.merge(KEY, WINDOW_6_HOURS, createChart(NOW, 6 * HOUR_MILLIS, 2 * MINUTE_MILLIS, 1000));
+
+        ChartData recent = mStore.query(KEY, WINDOW_30_MINS, NOW);
+        assertEquals(31, recent.getPointsCount());
+        for (float value : recent.getSeries(0)) {
+            assertTrue("A coarse point replaced a fine one: " + value, value < 1000);
+        }
+
+        // The coarse points only fill in the time before the fine chart
+        ChartData data = mStore.query(KEY, WINDOW_6_HOURS, NOW);
+        long[] timestamps = data.getTimestamps();
+        assertEquals(90 + 181, data.getPointsCount());
+        assertEquals(NOW - 6 * HOUR_MILLIS, timestamps[0]);
+        assertEquals(1000, data.getSeries(0)[0], 0);
+        for (int i = 1; i < timestamps.length; i++) {
+            assertTrue(timestamps[i] > timestamps[i - 1]);
+        }
+    }
+
+    public void testRefetchedChartReplacesItsPoints() {
+        mStore.merge(KEY, WINDOW_3_HOURS, createChart(NOW, 3 * HOUR_MILLIS, MINUTE_MILLIS, 0));
+        long later = NOW + MINUTE_MILLIS;
+        mStore.merge(KEY, WINDOW_3_HOURS, createChart(later, 3 * HOUR_MILLIS, MINUTE_MILLIS, 1000));
+
+        ChartData data = mStore.query(KEY, WINDOW_3_HOURS, later);
+        assertEquals(181, data.getPointsCount());
+        for (float value : data.getSeries(0)) {
+            assertTrue(value >= 1000);
+        }
+    }
+
+    // A chart whose points are step apart up to the end, valued firstValue, firstValue + 1 and so on
+    private static ChartData createChart(long end, long duration, long step, float firstValue) {
+        int pointsCount = (int) (duration / step) + 1;
+        long[] timestamps = new long[pointsCount];
+        float[] values = new float[pointsCount];
+        for (int i = 0; i < pointsCount; i++) {
+            timestamps[i] = end - duration + step * i;
+            values[i] = firstValue + i;
+        }
+
+        return new ChartData(timestamps, new float[][] {values}, new int[] {0xffff9900}, new String[1], 0,
+                firstValue + pointsCount);
+    }
+}